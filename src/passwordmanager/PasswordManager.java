@@ -5,12 +5,15 @@ import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import passwordmanager.crypto.XorCyfer;
 import passwordmanager.forms.LoginForm;
 import java.util.Random;
+import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import passwordmanager.forms.MainForm;
 import passwordmanager.network.Extension;
 import passwordmanager.network.Server;
+import passwordmanager.storage.Metadata;
 import passwordmanager.storage.Storage;
 
 /**
@@ -24,7 +27,7 @@ public class PasswordManager {
     
     // global varibles
     public static Storage storage;
-    public static String key;
+    public static XorCyfer cyfer; // key expanded once at login
     public static String identifier;
 
     public static void main(String[] args) {
@@ -37,11 +40,11 @@ public class PasswordManager {
     }
     
     public static void INIT(String username,String password){
-        // initilize storage
-        storage = new Storage(username);
         // set fields
-        key = password;
+        cyfer = new XorCyfer(password);
         identifier = username;
+        // initilize storage
+        storage = new Storage(username, password, PasswordManager::ConfirmLegacy);
         // create form and set attributes
         MainForm form = new MainForm();
         form.pack();
@@ -55,25 +58,25 @@ public class PasswordManager {
             @Override
             public void windowClosing(WindowEvent e) {
                 server.close();
-                storage.save();
-                
+                storage.close();
             }
         });
         
         form.setVisible(true);     
     }
     
+    private static boolean ConfirmLegacy(Metadata sample){
+        // old vaults open under any password, so the user checks an entry before it is converted
+        String message = "This vault was saved by an older version, which can't tell whether the password is right.\n"
+                + "Is this what you stored for " + sample.getKey() + "?\n\n"
+                + String.join("\n", sample.getData());
+        int answer = JOptionPane.showConfirmDialog(null, message, NAME, JOptionPane.YES_NO_OPTION);
+        return answer == JOptionPane.YES_OPTION;
+    }
+    
     public static String Cyfer(String password){
         // simple encryption using the XNOR oprator
-        StringBuilder builder = new StringBuilder();
-        int index = 0;
-        for (char b : password.toCharArray())
-        {
-            if (index == key.length()) index = 0;
-            builder.append((char) ((short) b ^ key.charAt(index)));
-            index++;
-        }
-        return builder.toString();
+        return cyfer.apply(password);
     }
     
     public static String GenPassword(int length){
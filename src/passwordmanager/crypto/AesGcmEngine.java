@@ -0,0 +1,83 @@
+package passwordmanager.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-256 in GCM mode, the cipher every vault is written with.
+ * <pre>
+ * sealed = nonce (12 bytes), ciphertext, tag (16 bytes)
+ * </pre>
+ * Every block gets its own nonce: a random base drawn when the engine is
+ * made, with a counter mixed into its low bytes. Nonces never repeat within
+ * a session, and across sessions they collide no more often than fully
+ * random ones, without a trip to the system random source per record.
+ * <p>
+ * On x86 the JVM runs both AES and the GHASH step of GCM on the AES-NI and
+ * carry-less multiply instructions, so there is nothing to tune here beyond
+ * not creating a {@link Cipher} per record: each thread keeps one instance
+ * and re-initialises it with the next nonce, which lets a save seal
+ * thousands of records on the same instance.
+ */
+public final class AesGcmEngine implements CipherEngine {
+    private static final int NONCE = 12; // bytes, the size GCM handles without extra hashing
+    private static final int TAG = 16; // bytes
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final byte[] base = new byte[NONCE]; // random nonce the counter is mixed into
+    private final AtomicLong counter = new AtomicLong(); // blocks sealed so far
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    public AesGcmEngine(SecretKey key) {
+        this.key = key;
+        RANDOM.nextBytes(base);
+    }
+
+    @Override
+    public int getId() {
+        return AES_GCM;
+    }
+
+    @Override
+    public int overhead() {
+        return NONCE + TAG;
+    }
+
+    @Override
+    public void seal(ByteBuffer src, ByteBuffer dst, byte[] associated) throws GeneralSecurityException {
+        byte[] nonce = base.clone();
+        long n = counter.getAndIncrement();
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE - 1 - i] ^= (byte) (n >>> (i * 8));
+        }
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG * 8, nonce));
+        cipher.updateAAD(associated);
+        dst.put(nonce);
+        cipher.doFinal(src, dst);
+    }
+
+    @Override
+    public void open(ByteBuffer src, ByteBuffer dst, byte[] associated) throws GeneralSecurityException {
+        if (src.remaining() < NONCE + TAG) throw new AEADBadTagException("Sealed block is cut short");
+        byte[] nonce = new byte[NONCE];
+        src.get(nonce);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG * 8, nonce));
+        cipher.updateAAD(associated);
+        cipher.doFinal(src, dst);
+    }
+}
@@ -0,0 +1,34 @@
+package passwordmanager.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Cipher used to seal the values of vault and journal records.
+ * <p>
+ * A block is the encoded values of one record. Sealing reads the block from
+ * the source buffer and writes it to the destination buffer, which must have
+ * room for {@link #overhead()} more bytes than the block. Engines that
+ * authenticate their output also authenticate the associated data, so a
+ * sealed block only opens under the record key it was written for.
+ */
+public interface CipherEngine {
+    // ids stored in the vault header
+    int XOR = 0;
+    int AES_GCM = 1;
+
+    int getId();
+
+    /**
+     * @return how many bytes a sealed block takes over the plain one
+     */
+    int overhead();
+
+    void seal(ByteBuffer src, ByteBuffer dst, byte[] associated) throws GeneralSecurityException;
+
+    /**
+     * @throws javax.crypto.AEADBadTagException when the block was tampered
+     * with or sealed under another key
+     */
+    void open(ByteBuffer src, ByteBuffer dst, byte[] associated) throws GeneralSecurityException;
+}
@@ -0,0 +1,83 @@
+package passwordmanager.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns the master password into the vault key with PBKDF2-HMAC-SHA256.
+ * <p>
+ * The number of rounds is picked when a vault is created, so that deriving
+ * the key takes about {@link #TARGET} on the machine it was created on, and
+ * is stored in the vault header next to the salt. Every guess at the
+ * password costs an attacker the same, while login time stays predictable.
+ */
+public final class KeyDerivation {
+    // never go below this, however slow the machine is
+    private static final int MIN_ITERATIONS = 600_000;
+    // how long a derivation should take, in milliseconds
+    private static final long TARGET = 500;
+    // rounds timed to work out the speed of this machine
+    private static final int PROBE = 20_000;
+    // longest calibration is allowed to take, in milliseconds
+    private static final long BUDGET = 1500;
+    private static final int SALT = 16; // bytes
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // what the verifier is a MAC of
+    private static final byte[] VERIFIER = "CyferKey vault verifier".getBytes(StandardCharsets.US_ASCII);
+
+    public static SecretKey derive(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+        try {
+            byte[] bytes = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(bytes, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * @return the number of rounds that takes about {@link #TARGET} here
+     */
+    public static int calibrate() throws GeneralSecurityException {
+        byte[] salt = salt();
+        long best = Long.MAX_VALUE;
+        long deadline = System.nanoTime() + BUDGET * 1_000_000;
+        // the HMAC code only runs at full speed once the JIT has compiled it,
+        // so keep probing until the best time stops improving. A machine
+        // still warming up at the deadline just gets the minimum.
+        for (int still = 0; still < 3 && System.nanoTime() < deadline; ) {
+            long start = System.nanoTime();
+            derive("calibration", salt, PROBE);
+            long time = System.nanoTime() - start;
+            still = time < best * 95 / 100 ? 0 : still + 1;
+            best = Math.min(best, time);
+        }
+        long iterations = PROBE * TARGET * 1_000_000 / Math.max(best, 1);
+        // round to a whole 10k so the header doesn't look more precise than it is
+        iterations = iterations / 10_000 * 10_000;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ITERATIONS, iterations));
+    }
+
+    /**
+     * Returns a value stored next to the salt that shows whether a password
+     * derives the right key, without giving away anything about the key.
+     * Compare it with {@link java.security.MessageDigest#isEqual}.
+     */
+    public static byte[] verifier(SecretKey key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return mac.doFinal(VERIFIER);
+    }
+
+    public static byte[] salt() {
+        byte[] salt = new byte[SALT];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+}
@@ -0,0 +1,127 @@
+package passwordmanager.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+
+/**
+ * The repeating key XOR cyfer the vault has always used, working on char
+ * ranges in place.
+ * <p>
+ * Every value starts again at the first char of the key, so applying the
+ * cyfer twice gives back the original. The key is expanded once into a block
+ * holding it several times over, which lets the inner loops run without
+ * wrapping the key position on every char.
+ * <p>
+ * As a {@link CipherEngine} it is only used to read vaults written before
+ * records were sealed with {@link AesGcmEngine}. It adds no bytes and does
+ * not authenticate anything.
+ */
+public final class XorCyfer implements CipherEngine {
+    // minimum length of the expanded key block, in chars
+    private static final int BLOCK = 64;
+
+    private final char[] stream; // the key repeated a whole number of times
+    private final byte[] bytes; // the same block as UTF-16BE bytes
+
+    public XorCyfer(String key) {
+        if (key.isEmpty()) throw new IllegalArgumentException("Key must not be empty");
+        // repeat the key until the block is long enough
+        int repeat = (BLOCK + key.length() - 1) / key.length();
+        stream = new char[key.length() * repeat];
+        for (int i = 0; i < stream.length; i++) {
+            stream[i] = key.charAt(i % key.length());
+        }
+        bytes = new byte[stream.length * 2];
+        for (int i = 0; i < stream.length; i++) {
+            bytes[i * 2] = (byte) (stream[i] >> 8);
+            bytes[i * 2 + 1] = (byte) stream[i];
+        }
+    }
+
+    /**
+     * Runs {@code length} chars starting at {@code offset} through the cyfer
+     * in place.
+     */
+    public void apply(char[] chars, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i += stream.length) {
+            int n = Math.min(stream.length, end - i);
+            for (int j = 0; j < n; j++) {
+                chars[i + j] ^= stream[j];
+            }
+        }
+    }
+
+    /**
+     * Runs {@code length} UTF-16BE chars starting at byte {@code offset}
+     * through the cyfer in place. The buffer position is left alone.
+     */
+    public void apply(ByteBuffer buf, int offset, int length) {
+        if (buf.hasArray()) {
+            // work on the backing array directly
+            byte[] array = buf.array();
+            int start = buf.arrayOffset() + offset;
+            int end = start + length * 2;
+            for (int i = start; i < end; i += bytes.length) {
+                int n = Math.min(bytes.length, end - i);
+                for (int j = 0; j < n; j++) {
+                    array[i + j] ^= bytes[j];
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            int at = offset + i * 2;
+            buf.putChar(at, (char) (buf.getChar(at) ^ stream[i % stream.length]));
+        }
+    }
+
+    @Override
+    public int getId() {
+        return XOR;
+    }
+
+    @Override
+    public int overhead() {
+        return 0;
+    }
+
+    @Override
+    public void seal(ByteBuffer src, ByteBuffer dst, byte[] associated) {
+        // copy the block over, then cyfer each value where it landed
+        int start = dst.position();
+        dst.put(src);
+        ByteBuffer block = dst.duplicate().position(start).limit(dst.position());
+        try {
+            int count = readVarint(block);
+            for (int i = 0; i < count; i++) {
+                int length = readVarint(block);
+                if (length > block.remaining() / 2) return; // damaged, left for the reader to reject
+                apply(block, block.position(), length);
+                block.position(block.position() + length * 2);
+            }
+        } catch (BufferUnderflowException e) {
+            // same
+        }
+    }
+
+    @Override
+    public void open(ByteBuffer src, ByteBuffer dst, byte[] associated) {
+        seal(src, dst, associated); // XOR is its own inverse
+    }
+
+    public String apply(String value) {
+        char[] chars = value.toCharArray();
+        apply(chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    private static int readVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+}
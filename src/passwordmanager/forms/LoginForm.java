@@ -3,6 +3,7 @@ package passwordmanager.forms;
 import java.io.File;
 import java.nio.file.Path;
 import passwordmanager.PasswordManager;
+import passwordmanager.storage.InvalidPasswordException;
 import static passwordmanager.PasswordManager.NAME;
 
 public class LoginForm extends javax.swing.JFrame {
@@ -163,8 +164,13 @@ public class LoginForm extends javax.swing.JFrame {
             errUsername.setText("That user dosen't exsist");
             return;
         }
-        // create MainForm
-        PasswordManager.INIT(usr,pass);
+        // create MainForm, the vault header rejects a wrong password before anything is loaded
+        try {
+            PasswordManager.INIT(usr,pass);
+        } catch (InvalidPasswordException e) {
+            errPassword.setText("Incorrect password");
+            return;
+        }
         // clear compoenent
         this.dispose();
     }//GEN-LAST:event_btnLoginActionPerformed
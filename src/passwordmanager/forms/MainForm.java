@@ -30,6 +30,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import passwordmanager.PasswordManager;
 import javax.swing.*;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
 import javax.swing.plaf.basic.BasicTreeUI;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
@@ -54,18 +56,33 @@ public class MainForm extends javax.swing.JFrame {
         
         // Populate the tree with data from PasswordManager's storage
         for (Metadata meta : PasswordManager.storage.fetchAll()) {
-            DefaultMutableTreeNode website = new DefaultMutableTreeNode(meta.getKey());
-            meta.decrypt();
-            for (String password : meta.getData()) {
-                website.add(new DefaultMutableTreeNode(password));
-            }
-            root.add(website);
+            root.add(CreateWebsiteNode(meta));
         }
         
         // Set the tree model with the populated root node
-        DefaultTreeModel model = new DefaultTreeModel(root);
+        DefaultTreeModel model = new DefaultTreeModel(root, true);
         tree = new JTree(model);
         
+        // Keep the tree up to date with every change to storage, wherever it comes from
+        PasswordManager.storage.addListener(new TreeRefresher(tree)::changed);
+        
+        // Load the passwords of websites that weren't loaded up front when they are expanded
+        tree.addTreeWillExpandListener(new TreeWillExpandListener() {
+            @Override
+            public void treeWillExpand(TreeExpansionEvent e) {
+                DefaultMutableTreeNode website = (DefaultMutableTreeNode) e.getPath().getLastPathComponent();
+                if (website.isRoot() || website.getChildCount() > 0) return;
+                Metadata meta = PasswordManager.storage.fetch(website.toString());
+                if (meta == null) return;
+                AddPasswords(website, meta);
+                ((DefaultTreeModel) tree.getModel()).nodeStructureChanged(website);
+            }
+
+            @Override
+            public void treeWillCollapse(TreeExpansionEvent e) {
+            }
+        });
+        
         // Customize the appearance of the tree
         tree.setFont(new Font("Arial", Font.PLAIN, 14));
         tree.setRowHeight(26);
@@ -105,21 +122,9 @@ public class MainForm extends javax.swing.JFrame {
                 Object[] nodes = path.getPath();
                 if (nodes.length != 3) continue; // Ensure correct node depth
 
-                // Remove the node from storage
+                // Remove the node from storage; the tree catches up on its own
                 PasswordManager.storage.remove(nodes[1].toString(), nodes[2].toString());
-
-                // Get the selected node from the tree model
-                DefaultMutableTreeNode node = (DefaultMutableTreeNode) path.getLastPathComponent();
-                DefaultMutableTreeNode parent = (DefaultMutableTreeNode) node.getParent();
-
-                // Check if the parent has no children left and remove it if necessary
-                if (parent.getChildCount() == 0) {
-                    model.removeNodeFromParent(parent);
-                }
             }
-
-            // Reload or refresh the tree after deletion
-            reload();
         });
 
         // Add action listener for the copy menu item
@@ -297,28 +302,23 @@ public class MainForm extends javax.swing.JFrame {
         return new ImageIcon(PasswordManager.class.getClassLoader().getResource("resources/" + filename));
     }
     
-    public void reload() {
-        // Create a new root node for the tree
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode();
-        // Fetch all stored metadata from the password manager
-        for (Metadata meta : PasswordManager.storage.fetchAll()) {
-            // Create a new tree node for each website (or key) in the metadata
-            DefaultMutableTreeNode website = new DefaultMutableTreeNode(meta.getKey());
-            // Decrypt the metadata to access the stored passwords
-            meta.decrypt();
-            // Add each password as a child node under the corresponding website node
-            for (String password : meta.getData()) {
-                website.add(new DefaultMutableTreeNode(password));
-            }
-            // Add the website node to the root node
-            root.add(website);
+    static DefaultMutableTreeNode CreateWebsiteNode(Metadata meta) {
+        // Create a new tree node for the website (or key) in the metadata
+        DefaultMutableTreeNode website = new DefaultMutableTreeNode(meta.getKey());
+        // Entries that are still sealed are filled in when expanded
+        if (!meta.isEncrypted()) AddPasswords(website, meta);
+        return website;
+    }
+    
+    static void AddPasswords(DefaultMutableTreeNode website, Metadata meta) {
+        // Decrypt the metadata to access the stored passwords
+        meta = PasswordManager.storage.decrypt(meta);
+        // Add each password as a leaf node under the website node, left where storage keeps it
+        for (int i = 0; i < meta.size(); i++) {
+            website.add(new DefaultMutableTreeNode(meta.view(i), false));
         }
-        // Create a new tree model using the root node
-        DefaultTreeModel model = new DefaultTreeModel(root);
-        // Set the new model to the tree, effectively reloading the data
-        tree.setModel(model);
     }
-
+    
     
 
     @SuppressWarnings("unchecked")
@@ -597,13 +597,11 @@ public class MainForm extends javax.swing.JFrame {
         if (model.isEmpty()) return;
         // Put new password in storage
         PasswordManager.storage.put(
-                new Metadata(website,false,
+                new Metadata(website,
                         Arrays.stream(model.toArray()).map((o) -> o.toString())
                                 .toArray(String[]::new)));
-        // hide window
+        // hide window (the tree picks up the new entry by itself)
         addFrm.setVisible(false);
-        // update tree
-        reload();
         // clear data in feilds
         txfWebsite.setText("");
         model.clear();
@@ -1,6 +1,9 @@
 package passwordmanager.forms;
 
+import java.io.File;
+import java.nio.file.Path;
 import passwordmanager.PasswordManager;
+import passwordmanager.storage.InvalidPasswordException;
 import static passwordmanager.PasswordManager.NAME;
 
 public class SignUpForm extends javax.swing.JFrame {
@@ -152,8 +155,23 @@ public class SignUpForm extends javax.swing.JFrame {
             errPassword.setText("Please enter a password");
             return;
         }
+        // check the user doesn't already exist
+        File file = Path.of("")
+                .toAbsolutePath()
+                .resolve("data/" + user + ".encrypt")
+                .toFile();
+        if (file.exists()) {
+            // signing up again would open, or be refused by, the existing vault
+            errUsername.setText("That user already exists");
+            return;
+        }
         // create MainForm and build user data file
-        PasswordManager.INIT(user,pass);
+        try {
+            PasswordManager.INIT(user,pass);
+        } catch (InvalidPasswordException e) {
+            errPassword.setText("Incorrect password");
+            return;
+        }
         // clear compoenent
         this.dispose();
     }//GEN-LAST:event_btnSignUpActionPerformed
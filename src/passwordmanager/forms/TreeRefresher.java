@@ -0,0 +1,86 @@
+package passwordmanager.forms;
+
+import java.awt.EventQueue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.JTree;
+import javax.swing.Timer;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import passwordmanager.PasswordManager;
+import passwordmanager.storage.Metadata;
+
+/**
+ * Brings the website tree up to date as storage changes, from whichever
+ * thread made the change.
+ * <p>
+ * Changed keys are only noted where they happen. Within a frame of the first
+ * one, a single update on the event dispatch thread reworks just the nodes of
+ * the websites that changed, however many changes came in meanwhile, instead
+ * of building the whole tree again.
+ */
+final class TreeRefresher {
+    // milliseconds changes are gathered for, about one frame
+    private static final int FRAME = 16;
+
+    private final JTree tree;
+    private final Set<String> changed = ConcurrentHashMap.newKeySet(); // keys waiting for the next update
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer = new Timer(FRAME, e -> update());
+    // Only touched on the event dispatch thread
+    private final Map<String, DefaultMutableTreeNode> nodes = new HashMap<>(); // website nodes by key
+    private boolean indexed; // nodes holds every website node of the tree
+
+    TreeRefresher(JTree tree) {
+        this.tree = tree;
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Storage listener: notes the key and makes sure an update is coming.
+     */
+    void changed(String key) {
+        changed.add(key);
+        if (scheduled.compareAndSet(false, true)) EventQueue.invokeLater(timer::restart);
+    }
+
+    private void update() {
+        scheduled.set(false); // changes from here on get another update
+        DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+        DefaultMutableTreeNode root = (DefaultMutableTreeNode) model.getRoot();
+        if (!indexed) index(root);
+        for (String key : changed) {
+            changed.remove(key);
+            DefaultMutableTreeNode website = nodes.get(key);
+            Metadata meta = PasswordManager.storage.fetch(key);
+            if (meta == null) {
+                // The last password of the website is gone
+                if (website == null) continue;
+                nodes.remove(key);
+                model.removeNodeFromParent(website);
+            } else if (website == null) {
+                website = MainForm.CreateWebsiteNode(meta);
+                nodes.put(key, website);
+                model.insertNodeInto(website, root, root.getChildCount());
+            } else if (website.getChildCount() > 0 || !meta.isEncrypted()) {
+                // Shown already, or the values are at hand: swap in the new ones
+                website.removeAllChildren();
+                MainForm.AddPasswords(website, meta);
+                model.nodeStructureChanged(website);
+            }
+            // Otherwise its passwords are still to be loaded when it is expanded
+        }
+    }
+
+    private void index(DefaultMutableTreeNode root) {
+        // First update: pick up the website nodes the form was built with
+        for (int i = 0; i < root.getChildCount(); i++) {
+            DefaultMutableTreeNode website = (DefaultMutableTreeNode) root.getChildAt(i);
+            nodes.put(website.toString(), website);
+        }
+        indexed = true;
+    }
+}
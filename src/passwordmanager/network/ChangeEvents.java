@@ -0,0 +1,157 @@
+package passwordmanager.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import passwordmanager.PasswordManager;
+import passwordmanager.storage.Metadata;
+
+/**
+ * Pushes vault changes to the extension as Server-Sent Events, so it can keep
+ * its own copy of the passwords instead of asking again.
+ * <p>
+ * Each change is one {@code change} event carrying the key and every password
+ * now stored under it, in the batch format: the key prefixed by its length,
+ * the number of passwords (0 once the key is gone), then each password
+ * prefixed by its length. That is cyfered like any other reply and the UTF-8
+ * bytes sent as Base64, since cyfered chars can include line breaks.
+ * <p>
+ * An event is built once, on the thread making the change, and queued for
+ * every open stream; each stream is written by the handler thread that
+ * accepted it. A client that falls {@link #BACKLOG} events behind is cut off
+ * and has to reconnect and read everything again. Streams are capped below the
+ * handler threads, so one is always left for every other request.
+ */
+final class ChangeEvents {
+    // events a stream may have waiting before it is dropped
+    static final int BACKLOG = 256;
+    // open streams allowed at once, fewer on small pools; each holds a handler thread for as long as it lasts
+    static final int MAX_STREAMS = 8;
+    // seconds between comments that keep an idle stream open and find closed ones
+    private static final long HEARTBEAT = 15;
+    // what a stream is told when it has to end, never a real event
+    private static final String END = "";
+
+    private final Set<BlockingQueue<String>> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicLong ids = new AtomicLong(); // event ids, so a client can tell it missed one
+    private final AtomicInteger open = new AtomicInteger(); // streams started and not yet ended
+    private final int maxStreams;
+    private volatile boolean closed;
+
+    /**
+     * @param threads handlers the server runs at once, see {@link ServerExecutors#threads}
+     */
+    ChangeEvents(int threads) {
+        maxStreams = Math.max(0, Math.min(MAX_STREAMS, threads - 1));
+    }
+
+    /**
+     * Storage listener: tells every open stream what is now stored under the key.
+     */
+    synchronized void changed(String key) {
+        if (streams.isEmpty()) return; // nothing to build the event for
+        String event = event(key);
+        for (BlockingQueue<String> stream : streams) {
+            if (!stream.offer(event)) {
+                // Too far behind to catch up, it reconnects and starts over
+                streams.remove(stream);
+                stream.clear();
+                stream.offer(END);
+            }
+        }
+    }
+
+    private String event(String key) {
+        Metadata data = PasswordManager.storage.fetch(key);
+        if (data != null) data = PasswordManager.storage.decrypt(data);
+        int count = data == null ? 0 : data.size();
+        // Sized up front and cyfered in place, so the passwords are in no other buffer
+        int length = 2 + key.length();
+        for (int i = 0; i < count; i++) {
+            length += 1 + data.view(i).length();
+        }
+        char[] chars = new char[length];
+        int n = 0;
+        chars[n++] = (char) key.length();
+        key.getChars(0, key.length(), chars, n);
+        n += key.length();
+        chars[n++] = (char) count;
+        for (int i = 0; i < count; i++) {
+            CharSequence d = data.view(i);
+            chars[n++] = (char) d.length();
+            for (int j = 0; j < d.length(); j++) {
+                chars[n++] = d.charAt(j);
+            }
+        }
+        PasswordManager.cyfer.apply(chars, 0, chars.length);
+        byte[] bytes = new String(chars).getBytes(StandardCharsets.UTF_8); // already cyfered
+        Arrays.fill(chars, '\0');
+        return "id: " + ids.incrementAndGet() + "\nevent: change\ndata: "
+                + Base64.getEncoder().encodeToString(bytes) + "\n\n";
+    }
+
+    /**
+     * Streams events to the client until it goes away or the server closes.
+     * Runs on the handler thread that accepted the request.
+     *
+     * @return false, with nothing sent, when as many streams as allowed are already open
+     */
+    boolean stream(HttpExchange h) throws IOException {
+        if (open.incrementAndGet() > maxStreams) {
+            open.decrementAndGet();
+            return false;
+        }
+        BlockingQueue<String> stream = new ArrayBlockingQueue<>(BACKLOG);
+        streams.add(stream);
+        try {
+            h.getResponseHeaders().set("Content-Type", "text/event-stream");
+            h.getResponseHeaders().set("Cache-Control", "no-cache");
+            h.sendResponseHeaders(200, 0); // chunked, for as long as it stays open
+            OutputStream out = h.getResponseBody();
+            write(out, "retry: 5000\n\n"); // milliseconds before the client reconnects
+            while (!closed) {
+                String event = stream.poll(HEARTBEAT, TimeUnit.SECONDS);
+                if (END.equals(event)) break;
+                // A comment when there was nothing to send; writing fails once the client is gone
+                write(out, event != null ? event : ":\n\n");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.remove(stream);
+            open.decrementAndGet();
+        }
+        return true;
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    int getStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Ends every open stream, so the threads writing them finish.
+     */
+    void close() {
+        closed = true;
+        for (BlockingQueue<String> stream : streams) {
+            stream.clear();
+            stream.offer(END);
+        }
+        streams.clear();
+    }
+}
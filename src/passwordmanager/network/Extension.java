@@ -2,156 +2,208 @@ package passwordmanager.network;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import passwordmanager.PasswordManager;
-import static passwordmanager.PasswordManager.Cyfer;
 import passwordmanager.forms.MainForm;
 import passwordmanager.storage.Metadata;
 
 
 public class Extension implements Server {
+    // Most of a turned away body that is read, so the connection can take the 429 (bytes)
+    private static final int DRAIN_LIMIT = 1 << 20;
     private final MainForm form;
     private HttpServer server;
-    
+    private ExecutorService executor; // runs the handlers, null for the dispatcher thread
+    private final ResponseCache cache = new ResponseCache(); // /passwords replies, ready to send
+    private ChangeEvents events; // pushed to the extension as the vault changes
+    private final ServerMetrics metrics = new ServerMetrics(); // served on /metrics
+    private final Sessions sessions = new Sessions(); // handed out by /validate
+    private final RateLimiter limiter = new RateLimiter(); // turns floods away with 429
+
     public Extension(MainForm form){
         this.form = form;
     }
-    
+
+    /**
+     * Handles a request from the extension once the username checked out.
+     */
+    private interface Route {
+        /**
+         * @param request what followed the username in the request body
+         */
+        void handle(String request, Reply reply) throws IOException;
+    }
+
     public void start() {
         try {
             // Create an HTTP server bound to port 6700
             server = HttpServer.create(new InetSocketAddress(6700), 0);
+            // Handle requests off the dispatcher thread, so a slow one doesn't stall the others
+            executor = ServerExecutors.create();
+            // As many event streams as leave a handler thread free
+            events = new ChangeEvents(ServerExecutors.threads(executor));
 
-            // Create a context to handle requests to /validate
-            server.createContext("/validate", h -> {
-                // Handle CORS preflight requests
-                if ("OPTIONS".equals(h.getRequestMethod())) {
-                    handleCors(h);
-                } else if ("POST".equals(h.getRequestMethod())) {
-                    // Read the input stream from the request body
-                    InputStreamReader in = new InputStreamReader(h.getRequestBody(), "utf-8");
-                    StringBuilder sb = new StringBuilder();
-                    int b;
-                    while ((b = in.read()) != -1) {
-                        sb.append((char) (b));
+            // The extension connecting, with just the username as the body.
+            // It gets a session token to send in the header from then on instead.
+            route("/validate", RateLimiter.Rate.VALIDATE, (request, reply) -> {
+                if (request.isEmpty()) {
+                    form.lblStatus.setText("Extension Connected: 200");
+                    reply.body().append(sessions.issue());  // 200 OK
+                } else {
+                    rejected(reply);
+                }
+            }, this::rejected);
+
+            // Replies built from an entry are stale once it changes
+            PasswordManager.storage.addListener(cache::invalidate);
+            PasswordManager.storage.addListener(events::changed);
+
+            // Changes to the vault as they happen, for as long as the extension listens
+            ServerMetrics.Context streamed = metrics.context("/events");
+            server.createContext("/events", h -> {
+                if (!admit(h, "/events", RateLimiter.Rate.VALIDATE, streamed)) return;
+                limiter.release();  // streams are capped on their own, so this one only counts while it starts
+                try (h) {
+                    Reply reply = Reply.acquire();
+                    boolean known;
+                    try {
+                        if (!accept(h, reply)) return;
+                        // The session or the username is all there is to the request
+                        known = reply.hasSession() || reply.startsWith(PasswordManager.identifier);
+                        if (!known) reply.status(404).send(h);  // Unknown user: 404 Not Found
+                    } finally {
+                        reply.release();  // not held for as long as the stream stays open
                     }
-                    // Decrypt the received username
-                    String username = Cyfer(sb.toString());
-
-                    // Check if the username matches the stored identifier
-                    int code;
-                    if (username.equals(PasswordManager.identifier)) {
-                        form.lblStatus.setText("Extension Connected: 200");
-                        code = 200;  // OK
-                    } else {
-                        form.lblStatus.setText("Extension attempted to connect with invalid credentials: 400");
-                        code = 400;  // Bad Request
+                    // A stream would hold the dispatcher thread, and with it every other request
+                    if (known && (ServerExecutors.isCallerRun() || !events.stream(h))) {
+                        h.sendResponseHeaders(503, -1);  // Service Unavailable
                     }
-
-                    // Set response headers and send response
-                    h.getResponseHeaders().set("Content-Type", "text/plain");
-                    handleCors(h);  // Add CORS headers
-                    h.sendResponseHeaders(code, -1);
-                } else {
-                    // If the request method is not allowed, return 405 Method Not Allowed
-                    handleCors(h);
-                    h.sendResponseHeaders(405, -1);
+                } finally {
+                    streamed.count(h.getResponseCode());  // how long a stream lasts says nothing
                 }
             });
 
-            // Create a context to handle requests to /passwords
-            server.createContext("/passwords", h -> {
-                // Handle CORS preflight requests
-                if ("OPTIONS".equals(h.getRequestMethod())) {
-                    handleCors(h);
-                } else if ("POST".equals(h.getRequestMethod())) {
-                    // Read the input stream from the request body
-                    InputStreamReader in = new InputStreamReader(h.getRequestBody(), "utf-8");
-                    StringBuilder builder = new StringBuilder();
-                    int b;
-                    while ((b = in.read()) != -1) {
-                        builder.append((char) (b));
+            // The stored passwords of a website
+            route("/passwords", RateLimiter.Rate.DEFAULT, (website, reply) -> {
+                long start = System.nanoTime();
+                Metadata data = PasswordManager.storage.find(website);
+                reply.storage(start);
+                if (data != null) {
+                    byte[] response = cache.get(website, data);
+                    if (response != null) {
+                        // Sent before and unchanged since, so nothing to decrypt or encode
+                        reply.sealed(response);
+                        return;
                     }
-                    // Decrypt the received data
-                    String buffer = Cyfer(builder.toString());
-                    int index = PasswordManager.identifier.length();
-                    String username = buffer.substring(0, index);
-                    String website = buffer.substring(index);
-                    handleCors(h);  // Add CORS headers
-
-                    Metadata data;
-                    if (PasswordManager.identifier.equals(username)) {
-                        // Fetch and decrypt the stored metadata for the website
-                        if ((data = PasswordManager.storage.fetch(website)) != null) {
-                            data.decrypt();
-                            StringBuilder build = new StringBuilder();
-                            for (String d : data.getData()) {
-                                build.append((char) (d.length()));
-                                build.append(d);
-                            }
-                            // Encrypt the response and send it back to the client
-                            byte[] body = Cyfer(build.toString()).getBytes(StandardCharsets.UTF_8);
-                            h.sendResponseHeaders(200, body.length);  // OK
-                            OutputStream response = h.getResponseBody();
-                            response.write(body);
-                            response.close();
-                        } else {
-                            // If no metadata found, return 400 Bad Request
-                            h.sendResponseHeaders(400, -1);
-                        }
-                    } else {
-                        // If the username is invalid, return 404 Not Found
-                        h.sendResponseHeaders(404, -1);
+                    // Decrypt the stored metadata and send each password prefixed by its length
+                    Metadata found = data;
+                    start = System.nanoTime();
+                    data = PasswordManager.storage.decrypt(data);
+                    reply.crypto(start);
+                    reply.body();
+                    for (int i = 0; i < data.size(); i++) {
+                        CharSequence d = data.view(i);
+                        reply.append((char) d.length()).append(d);
                     }
+                    cache.put(website, found, reply.seal());
                 } else {
-                    // If the request method is not allowed, return 405 Method Not Allowed
-                    handleCors(h);
-                    h.sendResponseHeaders(405, -1);
+                    // If no metadata found, return 400 Bad Request
+                    reply.status(400);
                 }
-            });
+            }, reply -> reply.status(404));  // Unknown user: 404 Not Found
 
-            // Create a context to handle requests to /generate
-            server.createContext("/generate", h -> {
-                if ("OPTIONS".equals(h.getRequestMethod())) {
-                    handleCors(h);
-                } else if ("POST".equals(h.getRequestMethod())) {
-                    // Read the input stream from the request body
-                    InputStreamReader in = new InputStreamReader(h.getRequestBody(), "utf-8");
-                    StringBuilder builder = new StringBuilder();
-                    int b;
-                    while ((b = in.read()) != -1) {
-                        builder.append((char) (b));
+            // The stored passwords of many websites at once, each name prefixed by its length.
+            // Each website gets the number of passwords found, then the passwords as above.
+            route("/passwords/batch", RateLimiter.Rate.DEFAULT, (request, reply) -> {
+                List<String> websites = new ArrayList<>();
+                for (int i = 0; i < request.length(); ) {
+                    int end = i + 1 + request.charAt(i);
+                    if (end > request.length()) {
+                        // A name runs past the end of the request, 400 Bad Request
+                        reply.status(400);
+                        return;
                     }
-                    // Decrypt the received data
-                    String buffer = Cyfer(builder.toString());
-                    int index = PasswordManager.identifier.length();
-                    String username = buffer.substring(0, index);
-                    String website = buffer.substring(index);
-                    handleCors(h);  // Add CORS headers
-
-                    if (PasswordManager.identifier.equals(username)) {
-                        // Generate a new password, store it, and reload the form
-                        String generated = PasswordManager.GenPassword(10);
-                        PasswordManager.storage.put(new Metadata(website, false, generated));
-                        form.reload();
-                        // Encrypt the generated password and send it back to the client
-                        byte[] password = Cyfer(generated).getBytes(StandardCharsets.UTF_8);
-                        h.sendResponseHeaders(200, password.length);  // OK
-                        OutputStream response = h.getResponseBody();
-                        response.write(password);
-                        response.close();
-                    } else {
-                        // If the username is invalid, return 404 Not Found
-                        h.sendResponseHeaders(404, -1);
+                    websites.add(request.substring(i + 1, end));
+                    i = end;
+                }
+                reply.body();
+                long start = System.nanoTime();
+                Metadata[] found = PasswordManager.storage.find(websites.toArray(String[]::new));
+                reply.storage(start);  // the lookups and opening their records together
+                for (Metadata data : found) {
+                    if (data == null) {
+                        reply.append((char) 0);
+                        continue;
+                    }
+                    reply.append((char) data.size());
+                    for (int i = 0; i < data.size(); i++) {
+                        CharSequence d = data.view(i);
+                        reply.append((char) d.length()).append(d);
+                    }
+                }
+            }, reply -> reply.status(404));  // Unknown user: 404 Not Found
+
+            // A new password for a website
+            route("/generate", RateLimiter.Rate.GENERATE, (website, reply) -> {
+                // Generate a new password and store it; the window shows it on its next frame
+                String generated = PasswordManager.GenPassword(10);
+                long start = System.nanoTime();
+                PasswordManager.storage.put(new Metadata(website, generated));
+                reply.storage(start);
+                // Send the generated password back to the client
+                reply.body().append(generated);
+            }, reply -> reply.status(404));  // Unknown user: 404 Not Found
+
+            // What the server has handled so far, for Prometheus to scrape
+            server.createContext("/metrics", h -> {
+                try (h) {
+                    if (!"GET".equals(h.getRequestMethod())) {
+                        // If the request method is not allowed, return 405 Method Not Allowed
+                        h.sendResponseHeaders(405, -1);
+                        return;
                     }
+                    byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                    h.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    h.sendResponseHeaders(200, body.length);
+                    h.getResponseBody().write(body);
                 }
             });
+            metrics.register("cyferkey_cache_hits_total", "counter",
+                    "Replies to /passwords sent from the cache.", cache::getHits);
+            metrics.register("cyferkey_cache_misses_total", "counter",
+                    "Replies to /passwords that had to be built.", cache::getMisses);
+            metrics.register("cyferkey_event_streams", "gauge",
+                    "Event streams open.", events::getStreams);
+            metrics.register("cyferkey_limiter_admitted_total", "counter",
+                    "Requests the rate limiter let in.", limiter::getAdmitted);
+            metrics.register("cyferkey_limiter_origin_limited_total", "counter",
+                    "Requests turned away for going over their origin's rate.", limiter::getLimitedOrigin);
+            metrics.register("cyferkey_limiter_global_limited_total", "counter",
+                    "Requests turned away for going over the server's rate.", limiter::getLimitedGlobal);
+            metrics.register("cyferkey_limiter_busy_total", "counter",
+                    "Requests turned away with too many others in flight.", limiter::getBusy);
+            metrics.register("cyferkey_limiter_in_flight", "gauge",
+                    "Requests being handled.", limiter::getInFlight);
+            metrics.register("cyferkey_limiter_held", "gauge",
+                    "Rejections waiting to be sent.", limiter::getHeld);
+            metrics.register("cyferkey_limiter_origins", "gauge",
+                    "Origins with a bucket of their own.", limiter::getOrigins);
+            metrics.register("cyferkey_sessions", "gauge",
+                    "Session tokens issued and not yet swept away.", sessions::size);
+            metrics.register("cyferkey_journal_queue_depth", "gauge",
+                    "Changes waiting to be committed to the journal.", PasswordManager.storage::getQueueDepth);
+            metrics.registerSeconds("cyferkey_journal_commit_seconds",
+                    "Time taken by the last journal commit.", PasswordManager.storage::getCommitLatency);
 
-            // Set the executor to null, using the default executor
-            server.setExecutor(null);
+            server.setExecutor(executor);
 
             // Start the HTTP server
             server.start();
@@ -162,23 +214,141 @@ public class Extension implements Server {
         }
     }
 
+    /**
+     * Registers a handler behind the steps every request shares: CORS,
+     * method check, reading the body in bulk, uncyfering it, checking the
+     * username, and cyfering and sending the reply.
+     */
+    private void route(String path, RateLimiter.Rate rate, Route route, Consumer<Reply> unknownUser) {
+        ServerMetrics.Context handled = metrics.context(path);
+        server.createContext(path, h -> {
+            if (!admit(h, path, rate, handled)) return;
+            long start = System.nanoTime();
+            Reply reply = Reply.acquire();
+            try (h) {
+                if (!accept(h, reply)) return;
+                String username = PasswordManager.identifier;
+                if (reply.hasSession()) {
+                    route.handle(reply.request(0), reply);  // just the request, no username
+                } else if (reply.startsWith(username)) {
+                    route.handle(reply.request(username.length()), reply);
+                } else {
+                    unknownUser.accept(reply);
+                }
+                reply.send(h);
+            } finally {
+                limiter.release();
+                handled.record(h.getResponseCode(), System.nanoTime() - start,
+                        reply.getStorageNanos(), reply.getCryptoNanos());
+                reply.release();
+            }
+        });
+    }
+
+    /**
+     * Counts the request against its origin and the whole server, and turns
+     * it away with 429 Too Many Requests when either is over its rate or too
+     * many requests are already being handled. The body is read and dropped
+     * first: closing a connection with unread bytes in it resets it, and the
+     * client would get that instead of the 429.
+     * <p>
+     * The 429 is held back until the client could have tried again, up to a
+     * second, without holding a handler thread. A client that ignores
+     * Retry-After is then kept to the rate instead of spinning on cheap
+     * rejections and taking the processor from everyone else.
+     *
+     * @return whether the request was let in, and has to be released;
+     * otherwise the exchange is answered and closed here
+     */
+    private boolean admit(HttpExchange h, String path, RateLimiter.Rate rate, ServerMetrics.Context handled) {
+        // Pages send their origin; anything else is known by its address
+        String origin = h.getRequestHeaders().getFirst("Origin");
+        if (origin == null) origin = h.getRemoteAddress().getAddress().getHostAddress();
+        long wait = limiter.acquire(path + " " + origin, rate);
+        if (wait == 0) return true;
+        discardBody(h);
+        limiter.hold(wait, () -> {
+            try (h) {
+                handleCors(h);  // so the extension can read the status
+                h.getResponseHeaders().set("Retry-After", Long.toString(TimeUnit.NANOSECONDS.toSeconds(wait) + 1));
+                h.sendResponseHeaders(429, -1);
+            } catch (IOException e) {
+                // The client gave up waiting
+            } finally {
+                handled.count(429);
+            }
+        });
+        return false;
+    }
+
+    private static void discardBody(HttpExchange h) {
+        byte[] buf = new byte[8192];
+        long read = 0;
+        try (InputStream in = h.getRequestBody()) {
+            for (int n; read <= DRAIN_LIMIT && (n = in.read(buf)) != -1; ) read += n;
+        } catch (IOException e) {
+            read = Long.MAX_VALUE; // The client is gone, or sent something broken
+        }
+        // Far more than the extension ever sends: don't keep the connection for another request
+        if (read > DRAIN_LIMIT) h.getResponseHeaders().set("Connection", "close");
+    }
+
+    /**
+     * Adds the CORS headers, answers preflight and anything but a POST,
+     * checks the session token if there is one, and reads the body into the
+     * reply.
+     *
+     * @return whether there is a request left to handle
+     */
+    private boolean accept(HttpExchange h, Reply reply) throws IOException {
+        handleCors(h);  // Add CORS headers
+        h.getResponseHeaders().set("Content-Type", "text/plain");
+        if ("OPTIONS".equals(h.getRequestMethod())) {
+            // CORS preflight request
+            h.sendResponseHeaders(204, -1);
+            return false;
+        } else if (!"POST".equals(h.getRequestMethod())) {
+            // If the request method is not allowed, return 405 Method Not Allowed
+            h.sendResponseHeaders(405, -1);
+            return false;
+        }
+        String token = h.getRequestHeaders().getFirst(Sessions.HEADER);
+        if (token != null) {
+            if (!sessions.check(token)) {
+                // Turned away before the body is read or uncyfered, 401 Unauthorized
+                h.sendResponseHeaders(401, -1);
+                return false;
+            }
+            reply.session();
+        }
+        if (!reply.read(h.getRequestBody())) {
+            // Nothing the extension sends comes close, 413 Payload Too Large
+            h.sendResponseHeaders(413, -1);
+            return false;
+        }
+        return true;
+    }
+
+    private void rejected(Reply reply) {
+        form.lblStatus.setText("Extension attempted to connect with invalid credentials: 400");
+        reply.status(400);  // Bad Request
+    }
+
     public void close(){
-        // stop the server
+        // end the event streams, then stop the server
+        if (events != null) events.close();
+        limiter.close();
         server.stop(0);
+        if (executor != null) executor.shutdown();
+        cache.clear();
     }
-    
+
     private void handleCors(HttpExchange h) {
         h.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         h.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        h.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+        h.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, " + Sessions.HEADER);
         h.getResponseHeaders().add("Access-Control-Allow-Credentials", "true");
         h.getResponseHeaders().add("Access-Control-Max-Age", "86400");  // 24 hours
-        if ("OPTIONS".equals(h.getRequestMethod())) {
-            try {
-                h.sendResponseHeaders(204, -1);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        h.getResponseHeaders().add("Access-Control-Expose-Headers", "Retry-After");
     }
 }
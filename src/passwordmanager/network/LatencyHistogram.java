@@ -0,0 +1,72 @@
+package passwordmanager.network;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations into log-linear buckets: every power of two split into
+ * {@link #SUB} equal steps, so any value is known to within about 6% from a
+ * nanosecond up to centuries, in a fixed 960 counters.
+ * <p>
+ * Recording is one atomic increment and takes no locks. Percentiles are read
+ * from the counts as they are; a value recorded meanwhile may or may not be
+ * included.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS; // steps per power of two
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder(); // nanoseconds
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0; // the clock is monotonic, but keep out of trouble
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    static int index(long value) {
+        if (value < SUB) return (int) value; // exact below the first split
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    /**
+     * @return the largest value that lands in the bucket
+     */
+    static long highest(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        return ((long) (SUB + index % SUB + 1) << shift) - 1;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return nanoseconds at or below which that share of the values fall, 0 when nothing was recorded
+     */
+    long percentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return highest(i);
+        }
+        return 0;
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,197 @@
+package passwordmanager.network;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one page or extension stuck in a loop from crowding out everyone
+ * else: a token bucket per origin and route, one for the whole server, a cap
+ * on the requests being handled at once, and a bounded queue of rejections
+ * held back until the client could have tried again.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time by which every
+ * token taken from it will have been put back (the generic cell rate form of
+ * a token bucket), so taking a token is one compare-and-set and nothing
+ * locks. Buckets of origins that have gone quiet are full again and are swept
+ * away once there are too many; should that not make room, the newcomers
+ * share one bucket. Turned off with {@code -Dcyferkey.ratelimit=false}.
+ */
+final class RateLimiter {
+    private static final boolean ENABLED = !"false".equals(System.getProperty("cyferkey.ratelimit"));
+    // requests handled at once before new ones are turned away, below the bounded pool's threads
+    static final int MAX_IN_FLIGHT = 32;
+    // origins tracked before idle ones are swept
+    private static final int MAX_ORIGINS = 1024;
+    // how long a client turned away for being busy is asked to wait
+    private static final long BUSY_RETRY = TimeUnit.SECONDS.toNanos(1);
+    // longest a rejection is held back before it is sent
+    private static final long MAX_HOLD = TimeUnit.SECONDS.toNanos(1);
+    // rejections held back at once; past that they are sent straight away
+    static final int MAX_HELD = 256;
+
+    /**
+     * Requests a second, and how many may come at once after a quiet spell.
+     */
+    record Rate(double perSecond, int burst) {
+        // the server as a whole
+        static final Rate GLOBAL = new Rate(200, 400);
+        // one origin on most routes, enough for autofill on busy pages
+        static final Rate DEFAULT = new Rate(50, 100);
+        // one origin connecting, which the extension does once
+        static final Rate VALIDATE = new Rate(2, 10);
+        // one origin generating passwords, each a new entry in the vault
+        static final Rate GENERATE = new Rate(1, 5);
+
+        long interval() {
+            return (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        }
+    }
+
+    private static final class Bucket {
+        private final AtomicLong full = new AtomicLong(System.nanoTime()); // when it is full again
+        private final long interval, tolerance; // nanoseconds per token, and how far ahead full may run
+
+        Bucket(Rate rate) {
+            interval = rate.interval();
+            tolerance = interval * (rate.burst() - 1);
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise nanoseconds until one can be
+         */
+        long take(long now) {
+            while (true) {
+                long current = full.get();
+                long from = current - now > 0 ? current : now; // a bucket that filled up stays full
+                long wait = from - now - tolerance;
+                if (wait > 0) return wait;
+                if (full.compareAndSet(current, from + interval)) return 0;
+            }
+        }
+
+        boolean idle(long now) {
+            return full.get() - now <= 0;
+        }
+    }
+
+    private final Bucket global = new Bucket(Rate.GLOBAL);
+    private final Bucket crowd = new Bucket(Rate.DEFAULT); // origins past MAX_ORIGINS
+    private final Map<String, Bucket> origins = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger held = new AtomicInteger();
+    private final ScheduledExecutorService rejections = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder limitedOrigin = new LongAdder();
+    private final LongAdder limitedGlobal = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+
+    /**
+     * Lets a request in if its origin, the server and the in-flight cap all
+     * allow it. One that is let in must be handed back to {@link #release()}.
+     *
+     * @param key the origin and route the request is counted against
+     * @return 0 if the request may go ahead, otherwise nanoseconds to wait before trying again
+     */
+    long acquire(String key, Rate rate) {
+        if (!ENABLED) return 0;
+        if (inFlight.incrementAndGet() > MAX_IN_FLIGHT) {
+            inFlight.decrementAndGet();
+            busy.increment();
+            return BUSY_RETRY;
+        }
+        long now = System.nanoTime();
+        long wait = bucket(key, rate, now).take(now);
+        if (wait > 0) {
+            limitedOrigin.increment();
+        } else if ((wait = global.take(now)) > 0) {
+            limitedGlobal.increment();
+        } else {
+            admitted.increment();
+            return 0;
+        }
+        inFlight.decrementAndGet();
+        return wait;
+    }
+
+    void release() {
+        if (ENABLED) inFlight.decrementAndGet();
+    }
+
+    /**
+     * Sends a rejection once the client could have tried again, or at once
+     * if {@link #MAX_HELD} are already waiting.
+     *
+     * @param wait nanoseconds until the client may try again
+     */
+    void hold(long wait, Runnable reject) {
+        if (held.incrementAndGet() > MAX_HELD) {
+            held.decrementAndGet();
+            reject.run();
+            return;
+        }
+        try {
+            rejections.schedule(() -> {
+                held.decrementAndGet();
+                reject.run();
+            }, Math.min(wait, MAX_HOLD), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+            held.decrementAndGet();
+            reject.run();
+        }
+    }
+
+    void close() {
+        rejections.shutdownNow();
+    }
+
+    private Bucket bucket(String key, Rate rate, long now) {
+        Bucket bucket = origins.get(key);
+        if (bucket != null) return bucket;
+        if (origins.size() >= MAX_ORIGINS) {
+            // A full bucket behaves just like a new one, so dropping it changes nothing
+            origins.values().removeIf(b -> b.idle(now));
+            if (origins.size() >= MAX_ORIGINS) return crowd;
+        }
+        return origins.computeIfAbsent(key, k -> new Bucket(rate));
+    }
+
+    long getAdmitted() {
+        return admitted.sum();
+    }
+
+    long getLimitedOrigin() {
+        return limitedOrigin.sum();
+    }
+
+    long getLimitedGlobal() {
+        return limitedGlobal.sum();
+    }
+
+    long getBusy() {
+        return busy.sum();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getOrigins() {
+        return origins.size();
+    }
+
+    int getHeld() {
+        return held.get();
+    }
+}
@@ -0,0 +1,231 @@
+package passwordmanager.network;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import passwordmanager.PasswordManager;
+
+/**
+ * Buffers for one extension request: the body read in and decoded, then the
+ * reply built, cyfered and encoded in the same arrays.
+ * <p>
+ * Instances are pooled, so a request normally allocates nothing here. The
+ * cyfer runs in place over the reply chars, which leaves no plain text
+ * behind in the buffers once the reply has been sent.
+ */
+final class Reply {
+    // largest request body accepted, in bytes
+    static final int MAX_BODY = 16 * 1024;
+    // buffers kept for reuse, about one per busy handler thread
+    private static final BlockingQueue<Reply> POOL = new ArrayBlockingQueue<>(32);
+
+    private byte[] bytes = new byte[512]; // body in, reply out
+    private char[] chars = new char[512]; // decoded body, then the reply
+    private int length; // chars used
+    private int code = 200;
+    private byte[] sealed; // sent as it is instead of the chars
+    private long storageNanos, cryptoNanos; // spent on this request so far, for the metrics
+    private boolean session; // came with a valid session token instead of the username
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    static Reply acquire() {
+        Reply reply = POOL.poll();
+        return reply != null ? reply : new Reply();
+    }
+
+    void release() {
+        Arrays.fill(chars, 0, length, '\0'); // a reply that was never sent is still plain text
+        length = 0;
+        code = 200;
+        sealed = null;
+        storageNanos = cryptoNanos = 0;
+        session = false;
+        POOL.offer(this); // dropped when the pool is full
+    }
+
+    /**
+     * Reads the whole body in bulk, then decodes and uncyfers it in place.
+     *
+     * @return false when the body is larger than {@link #MAX_BODY}
+     */
+    boolean read(InputStream in) throws IOException {
+        int n = 0;
+        int read;
+        while ((read = in.read(bytes, n, bytes.length - n)) != -1) {
+            n += read;
+            if (n > MAX_BODY) return false;
+            // one byte past the limit is enough to tell it was exceeded
+            if (n == bytes.length) bytes = Arrays.copyOf(bytes, Math.min(n * 2, MAX_BODY + 1));
+        }
+        // UTF-8 never has more chars than bytes
+        if (chars.length < n) chars = new char[bytes.length];
+        CharBuffer out = CharBuffer.wrap(chars);
+        decoder.reset().decode(ByteBuffer.wrap(bytes, 0, n), out, true);
+        decoder.flush(out);
+        length = out.position();
+        PasswordManager.cyfer.apply(chars, 0, length);
+        return true;
+    }
+
+    void session() {
+        session = true;
+    }
+
+    /**
+     * @return whether the request came with a valid session token
+     */
+    boolean hasSession() {
+        return session;
+    }
+
+    /**
+     * @return whether the request starts with the given username
+     */
+    boolean startsWith(String username) {
+        if (length < username.length()) return false;
+        for (int i = 0; i < username.length(); i++) {
+            if (chars[i] != username.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the request from {@code start} on
+     */
+    String request(int start) {
+        return new String(chars, start, length - start);
+    }
+
+    Reply status(int code) {
+        this.code = code;
+        length = 0; // no body
+        return this;
+    }
+
+    Reply body() {
+        // from here on the chars hold the reply
+        length = 0;
+        return this;
+    }
+
+    Reply append(char c) {
+        ensure(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    Reply append(CharSequence s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            chars[length++] = s.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Counts the time since {@code start} as spent in storage.
+     */
+    void storage(long start) {
+        storageNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Counts the time since {@code start} as spent decrypting or cyfering.
+     */
+    void crypto(long start) {
+        cryptoNanos += System.nanoTime() - start;
+    }
+
+    long getStorageNanos() {
+        return storageNanos;
+    }
+
+    long getCryptoNanos() {
+        return cryptoNanos;
+    }
+
+    /**
+     * Cyfers and encodes the reply now rather than when it is sent.
+     *
+     * @return a copy of the bytes that will be sent, to send again later
+     */
+    byte[] seal() {
+        sealed = Arrays.copyOf(bytes, encode());
+        return sealed;
+    }
+
+    /**
+     * Replies with bytes sealed for an earlier request.
+     */
+    Reply sealed(byte[] response) {
+        body();
+        sealed = response;
+        return this;
+    }
+
+    /**
+     * Cyfers the reply in place and sends it with the status code.
+     */
+    void send(HttpExchange h) throws IOException {
+        if (sealed != null) {
+            write(h, sealed, sealed.length);
+        } else if (length == 0) {
+            h.sendResponseHeaders(code, -1);
+        } else {
+            write(h, bytes, encode());
+        }
+    }
+
+    private void write(HttpExchange h, byte[] body, int n) throws IOException {
+        h.sendResponseHeaders(code, n);
+        try (OutputStream response = h.getResponseBody()) {
+            response.write(body, 0, n);
+        }
+    }
+
+    /**
+     * @return the number of bytes the reply takes up in {@code bytes}
+     */
+    private int encode() {
+        long start = System.nanoTime();
+        PasswordManager.cyfer.apply(chars, 0, length);
+        ByteBuffer out = ByteBuffer.wrap(bytes);
+        CharBuffer in = CharBuffer.wrap(chars, 0, length);
+        encoder.reset();
+        while (encoder.encode(in, out, true).isOverflow()) {
+            out = grow(out);
+        }
+        while (encoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        crypto(start);
+        return out.position();
+    }
+
+    private ByteBuffer grow(ByteBuffer out) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        return ByteBuffer.wrap(bytes).position(out.position());
+    }
+
+    private void ensure(int more) {
+        if (length + more <= chars.length) return;
+        char[] old = chars;
+        chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + more));
+        Arrays.fill(old, '\0'); // holds the plain reply so far
+    }
+}
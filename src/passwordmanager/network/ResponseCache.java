@@ -0,0 +1,79 @@
+package passwordmanager.network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import passwordmanager.storage.Metadata;
+
+/**
+ * Replies to {@code /passwords} ready to send again: cyfered and encoded,
+ * exactly the bytes that went out the first time.
+ * <p>
+ * Each reply remembers the entry it was built from. Storage reports every
+ * key that is put or removed and the replies built from it are dropped; a
+ * reply is also only used while the website still finds that same entry, which
+ * covers a change racing with the reply being built. At most
+ * {@code -Dcyferkey.cache} (256) websites are kept, the least recently used
+ * going first; 0 turns the cache off.
+ */
+final class ResponseCache {
+    private static final int CAPACITY = Integer.getInteger("cyferkey.cache", 256);
+
+    private record Cached(Metadata meta, byte[] response) {}
+
+    private final Map<String, Cached> replies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param meta the entry the website finds now
+     * @return the reply built from that entry, or null if there is none
+     */
+    byte[] get(String website, Metadata meta) {
+        Cached cached;
+        synchronized (replies) {
+            cached = replies.get(website);
+        }
+        if (cached != null && cached.meta() == meta) {
+            hits.increment();
+            return cached.response();
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String website, Metadata meta, byte[] response) {
+        if (CAPACITY <= 0) return;
+        synchronized (replies) {
+            replies.put(website, new Cached(meta, response));
+        }
+    }
+
+    /**
+     * Drops every reply built from the entry stored under the key.
+     */
+    void invalidate(String key) {
+        synchronized (replies) {
+            replies.values().removeIf(cached -> cached.meta().getKey().equals(key));
+        }
+    }
+
+    void clear() {
+        synchronized (replies) {
+            replies.clear();
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,103 @@
+package passwordmanager.network;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors the extension server runs its handlers on, so one slow request
+ * doesn't hold up the rest. Picked with {@code -Dcyferkey.executor}:
+ * <ul>
+ * <li>{@code bounded} (default): platform threads started as needed, up to
+ * {@code -Dcyferkey.threads} (64); past that the dispatcher runs the request
+ * itself, which stops it accepting more until one finishes, so handlers that
+ * block for long check {@link #isCallerRun()} first</li>
+ * <li>{@code virtual}: a virtual thread per request, on JDKs that have
+ * them, otherwise {@code bounded}. The server reads request bodies inside
+ * {@code synchronized} blocks, which pins the carrier thread until JDK 24,
+ * so a few clients sending slowly can still stall every other request.</li>
+ * <li>{@code fixed}: {@code -Dcyferkey.threads} platform threads (one per
+ * core) and an unbounded queue</li>
+ * <li>{@code dispatcher}: everything on the server's dispatcher thread, as
+ * before</li>
+ * </ul>
+ */
+public final class ServerExecutors {
+    private static final String EXECUTOR = System.getProperty("cyferkey.executor", "bounded");
+    private static final int BOUNDED_THREADS = 64;
+    private static final long KEEP_ALIVE = 30; // seconds an idle bounded thread lingers
+    // set while the dispatcher runs a task the bounded pool had no thread for
+    private static final ThreadLocal<Boolean> CALLER_RUNS = new ThreadLocal<>();
+
+    /**
+     * @return the configured executor, null for the dispatcher thread
+     */
+    public static ExecutorService create() {
+        return switch (EXECUTOR) {
+            case "virtual" -> virtual();
+            case "bounded" -> bounded(Integer.getInteger("cyferkey.threads", BOUNDED_THREADS));
+            case "fixed" -> fixed(Integer.getInteger("cyferkey.threads", Runtime.getRuntime().availableProcessors()));
+            case "dispatcher" -> null;
+            default -> throw new IllegalArgumentException("Unknown executor " + EXECUTOR);
+        };
+    }
+
+    public static ExecutorService virtual() {
+        try {
+            // Looked up at runtime: the build targets Java 20, where virtual threads are a preview
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.err.println("Failed to start virtual threads, using a bounded pool\nReason: " + e);
+            return bounded(BOUNDED_THREADS);
+        }
+    }
+
+    public static ExecutorService bounded(int threads) {
+        // no queue: a request either gets a thread or waits on the dispatcher
+        return new ThreadPoolExecutor(0, threads, KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                factory(), (task, pool) -> {
+                    if (pool.isShutdown()) return; // dropped, like CallerRunsPolicy does
+                    CALLER_RUNS.set(true);
+                    try {
+                        task.run();
+                    } finally {
+                        CALLER_RUNS.remove();
+                    }
+                });
+    }
+
+    public static ExecutorService fixed(int threads) {
+        return Executors.newFixedThreadPool(threads, factory());
+    }
+
+    /**
+     * @return handlers the executor runs at once: 0 for the dispatcher thread,
+     * {@link Integer#MAX_VALUE} when every one gets a thread of its own
+     */
+    public static int threads(ExecutorService executor) {
+        if (executor == null) return 0;
+        if (executor instanceof ThreadPoolExecutor pool) return pool.getMaximumPoolSize();
+        return Integer.MAX_VALUE; // virtual
+    }
+
+    /**
+     * @return whether the calling handler is running on the dispatcher thread
+     * because every bounded thread was busy
+     */
+    public static boolean isCallerRun() {
+        return CALLER_RUNS.get() != null;
+    }
+
+    private static ThreadFactory factory() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "extension-" + count.incrementAndGet());
+            thread.setDaemon(true); // never keeps the app alive once the window is closed
+            return thread;
+        };
+    }
+}
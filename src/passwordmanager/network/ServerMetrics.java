@@ -0,0 +1,129 @@
+package passwordmanager.network;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Request counts and latencies of the extension server, written out in the
+ * Prometheus text format for {@code /metrics}.
+ * <p>
+ * Every context counts its requests by status code and times them three
+ * ways: the whole request, the part spent looking entries up or changing
+ * them in storage, and the part spent decrypting and cyfering. The latencies
+ * are reported as summaries with their p50, p99 and p99.9.
+ */
+final class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] PHASES = {"total", "storage", "crypto"};
+
+    /**
+     * What one context has handled so far.
+     */
+    static final class Context {
+        // requests by status code; 0 for requests that failed before sending one
+        private final AtomicLongArray codes = new AtomicLongArray(600);
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram storage = new LatencyHistogram();
+        private final LatencyHistogram crypto = new LatencyHistogram();
+
+        /**
+         * @param code the status sent, -1 if none was
+         */
+        void record(int code, long nanos, long storageNanos, long cryptoNanos) {
+            count(code);
+            total.record(nanos);
+            storage.record(storageNanos);
+            crypto.record(cryptoNanos);
+        }
+
+        /**
+         * Counts a request without timing it.
+         */
+        void count(int code) {
+            codes.incrementAndGet(code >= 0 && code < codes.length() ? code : 0);
+        }
+
+        private LatencyHistogram phase(String phase) {
+            return switch (phase) {
+                case "storage" -> storage;
+                case "crypto" -> crypto;
+                default -> total;
+            };
+        }
+    }
+
+    private final Map<String, Context> contexts = new ConcurrentSkipListMap<>(); // sorted for the output
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private record Gauge(String help, String type, LongSupplier value, boolean nanos) {}
+
+    Context context(String path) {
+        return contexts.computeIfAbsent(path, p -> new Context());
+    }
+
+    /**
+     * Adds a value read when the metrics are, such as a count kept elsewhere.
+     *
+     * @param type {@code counter} or {@code gauge}
+     */
+    void register(String name, String type, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, type, value, false));
+    }
+
+    /**
+     * Adds a gauge of nanoseconds read when the metrics are, reported in seconds
+     * like every other time.
+     */
+    void registerSeconds(String name, String help, LongSupplier nanos) {
+        gauges.put(name, new Gauge(help, "gauge", nanos, true));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP cyferkey_requests_total Requests handled, by context and status code.\n")
+                .append("# TYPE cyferkey_requests_total counter\n");
+        contexts.forEach((path, context) -> {
+            for (int code = 0; code < context.codes.length(); code++) {
+                long n = context.codes.get(code);
+                if (n == 0) continue;
+                out.append("cyferkey_requests_total{context=\"").append(path)
+                        .append("\",code=\"").append(code == 0 ? "none" : code).append("\"} ").append(n).append('\n');
+            }
+        });
+        out.append("# HELP cyferkey_request_seconds Time taken by requests, in all and in storage and crypto.\n")
+                .append("# TYPE cyferkey_request_seconds summary\n");
+        contexts.forEach((path, context) -> {
+            if (context.total.getCount() == 0) return; // counted only, like /events
+            for (String phase : PHASES) {
+                LatencyHistogram histogram = context.phase(phase);
+                String labels = "context=\"" + path + "\",phase=\"" + phase + "\"";
+                for (double quantile : QUANTILES) {
+                    out.append("cyferkey_request_seconds{").append(labels).append(",quantile=\"").append(quantile)
+                            .append("\"} ").append(seconds(histogram.percentile(quantile))).append('\n');
+                }
+                out.append("cyferkey_request_seconds_sum{").append(labels).append("} ")
+                        .append(seconds(histogram.getSum())).append('\n');
+                out.append("cyferkey_request_seconds_count{").append(labels).append("} ")
+                        .append(histogram.getCount()).append('\n');
+            }
+        });
+        new ConcurrentSkipListMap<>(gauges).forEach((name, gauge) -> {
+            out.append("# HELP ").append(name).append(' ').append(gauge.help()).append('\n')
+                    .append("# TYPE ").append(name).append(' ').append(gauge.type()).append('\n')
+                    .append(name).append(' ');
+            long value = gauge.value().getAsLong();
+            out.append(gauge.nanos() ? seconds(value) : Long.toString(value)).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
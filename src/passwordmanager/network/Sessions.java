@@ -0,0 +1,81 @@
+package passwordmanager.network;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived tokens handed out by {@code /validate}, so later requests
+ * prove who they are without the username and before anything is uncyfered.
+ * <p>
+ * A token is an 8 byte id followed by a 24 byte secret, Base64url encoded.
+ * The id finds the session in a map and the secret is compared in constant
+ * time, so how long a check takes says nothing about how close a guess was.
+ * Anything that isn't the right length, names no session or has expired is
+ * turned away without touching the map more than once. Sessions last
+ * {@code -Dcyferkey.session} seconds (600) from when they were issued.
+ */
+final class Sessions {
+    // request header carrying the token
+    static final String HEADER = "X-CyferKey-Session";
+    private static final long TTL = TimeUnit.SECONDS.toNanos(Long.getLong("cyferkey.session", 600));
+    private static final int ID = 8, SECRET = 24;
+    private static final int TOKEN_LENGTH = 43; // chars of 32 bytes in unpadded Base64
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private record Session(byte[] secret, long expires) {}
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private volatile long nextSweep = System.nanoTime() + TTL;
+
+    /**
+     * @return a new token, good until the session length runs out
+     */
+    String issue() {
+        long now = System.nanoTime();
+        if (now - nextSweep >= 0) sweep(now);
+        byte[] token = new byte[ID + SECRET];
+        long id;
+        do {
+            RANDOM.nextBytes(token);
+            id = ByteBuffer.wrap(token).getLong();
+        } while (sessions.putIfAbsent(id, new Session(Arrays.copyOfRange(token, ID, token.length), now + TTL)) != null);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    /**
+     * @return whether the token names a session that hasn't expired
+     */
+    boolean check(String token) {
+        if (token.length() != TOKEN_LENGTH) return false;
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return false; // not a token we would have issued
+        }
+        long id = ByteBuffer.wrap(bytes).getLong();
+        Session session = sessions.get(id);
+        if (session == null) return false;
+        if (System.nanoTime() - session.expires() >= 0) {
+            sessions.remove(id, session);
+            return false;
+        }
+        return MessageDigest.isEqual(session.secret(), Arrays.copyOfRange(bytes, ID, bytes.length));
+    }
+
+    private void sweep(long now) {
+        // Expired sessions nobody presents again would otherwise stay for good
+        nextSweep = now + TTL;
+        sessions.values().removeIf(session -> now - session.expires() >= 0);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,95 @@
+package passwordmanager.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import passwordmanager.crypto.CipherEngine;
+
+/**
+ * Opens or seals many entries at once, split across the common fork-join
+ * pool.
+ * <p>
+ * Every entry is sealed on its own, so the work splits into ranges of the
+ * entry array with nothing shared between them but the engine, which keeps a
+ * cipher per thread. Small vaults, and machines with a single core, are
+ * handled on the calling thread, where handing out the work costs more than
+ * it saves.
+ */
+final class BulkCrypto {
+    // below this many entries everything stays on the calling thread
+    static final int SEQUENTIAL_THRESHOLD = 4096;
+    // entries a task works through itself instead of splitting further
+    private static final int LEAF = 1024;
+
+    private interface Step {
+        void run(int i) throws IOException;
+    }
+
+    /**
+     * Opens the records of all the given entries.
+     */
+    static void open(Metadata[] entries) throws IOException {
+        forEach(entries.length, i -> entries[i].load());
+    }
+
+    /**
+     * Seals and encodes the entries that are dirty or were sealed with
+     * another engine, re-keying them as a side effect.
+     *
+     * @return the new record of each entry that was sealed, null for the
+     * ones whose stored record is still good
+     */
+    static ByteBuffer[] seal(Metadata[] entries, CipherEngine engine) throws IOException {
+        ByteBuffer[] encoded = new ByteBuffer[entries.length];
+        forEach(entries.length, i -> {
+            if (entries[i].isDirty() || !entries[i].sealedWith(engine)) {
+                encoded[i] = VaultFormat.encode(entries[i], engine);
+            }
+        });
+        return encoded;
+    }
+
+    private static void forEach(int n, Step step) throws IOException {
+        if (n < SEQUENTIAL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            for (int i = 0; i < n; i++) {
+                step.run(i);
+            }
+            return;
+        }
+        Range all = new Range(step, 0, n, new AtomicReference<>());
+        ForkJoinPool.commonPool().invoke(all); // joining makes every write visible here
+        if (all.failure.get() != null) throw all.failure.get();
+    }
+
+    private static final class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient Step step;
+        private final int from, to;
+        private final AtomicReference<IOException> failure; // first error, stops the other ranges
+
+        Range(Step step, int from, int to, AtomicReference<IOException> failure) {
+            this.step = step;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Range(step, from, mid, failure), new Range(step, mid, to, failure));
+                return;
+            }
+            try {
+                for (int i = from; i < to && failure.get() == null; i++) {
+                    step.run(i);
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
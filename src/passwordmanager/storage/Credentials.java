@@ -0,0 +1,260 @@
+package passwordmanager.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The credentials of one site packed into a single buffer, with a table
+ * holding the start and end of every value.
+ * <p>
+ * Like {@link String}, the buffer holds one byte per char while every char
+ * fits in Latin-1, and two bytes per char (big-endian) otherwise. Positions
+ * in the bounds table are always char positions.
+ * <p>
+ * Instances are immutable snapshots but share their buffers. A snapshot may
+ * write past the region it can see as long as no other snapshot has claimed
+ * that space yet, which makes appends amortized O(1). Removing a value only
+ * builds a new bounds table; the chars stay where they are.
+ * <p>
+ * Buffers come from the heap, or from a {@link SecretArena} in direct memory
+ * while one is set, so decrypted values can be wiped when the vault closes.
+ */
+final class Credentials {
+    // where new buffers are allocated, null for the heap
+    static volatile SecretArena arena;
+
+    private final ByteBuffer buf; // values back to back, shared between snapshots
+    private final boolean wide; // two bytes per char instead of one
+    private final AtomicInteger charsUsed; // chars claimed by any snapshot sharing the buffer
+    private final int[] bounds; // start and end of each value, shared between snapshots
+    private final AtomicInteger boundsUsed; // bounds claimed by any snapshot sharing the table
+    private final int count; // number of values in this snapshot
+    private final int charEnd; // chars claimed by this snapshot
+
+    private Credentials(ByteBuffer buf, boolean wide, AtomicInteger charsUsed, int[] bounds,
+            AtomicInteger boundsUsed, int count, int charEnd) {
+        this.buf = buf;
+        this.wide = wide;
+        this.charsUsed = charsUsed;
+        this.bounds = bounds;
+        this.boundsUsed = boundsUsed;
+        this.count = count;
+        this.charEnd = charEnd;
+    }
+
+    /**
+     * Takes over a buffer that is already packed, with {@code count} values
+     * laid out back to back.
+     */
+    static Credentials wrap(ByteBuffer buf, boolean wide, int[] bounds, int count) {
+        int end = count == 0 ? 0 : bounds[count * 2 - 1];
+        return new Credentials(buf, wide, new AtomicInteger(end), bounds, new AtomicInteger(count * 2), count, end);
+    }
+
+    static Credentials of(String... values) {
+        // sized exactly, most sites never grow
+        int total = 0;
+        boolean wide = false;
+        for (String value : values) {
+            total += value.length();
+            wide |= !latin1(value);
+        }
+        ByteBuffer buf = allocate(wide ? total * 2 : total);
+        int[] bounds = new int[values.length * 2];
+        int end = copy(values, buf, wide, bounds, 0, 0);
+        return new Credentials(buf, wide, new AtomicInteger(end), bounds,
+                new AtomicInteger(bounds.length), values.length, end);
+    }
+
+    int size() {
+        return count;
+    }
+
+    String get(int i) {
+        int start = start(i);
+        int length = length(i);
+        if (!wide && buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + start, length, StandardCharsets.ISO_8859_1);
+        }
+        // decoded by hand, a charset would replace lone surrogates
+        char[] chars = new char[length];
+        for (int j = 0; j < length; j++) {
+            chars[j] = charAt(start + j);
+        }
+        return new String(chars);
+    }
+
+    char charAt(int position) {
+        if (!wide) return (char) (buf.get(position) & 0xFF);
+        return buf.getChar(position * 2); // buffers are always big-endian
+    }
+
+    /**
+     * @return the value without copying it out, for showing it on screen
+     */
+    CharSequence view(int i) {
+        return new View(start(i), start(i) + length(i));
+    }
+
+    int start(int i) {
+        return bounds[i * 2];
+    }
+
+    int length(int i) {
+        return bounds[i * 2 + 1] - bounds[i * 2];
+    }
+
+    String[] toArray() {
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = get(i);
+        }
+        return values;
+    }
+
+    Credentials append(String... values) {
+        int need = 0;
+        boolean fits = true;
+        for (String value : values) {
+            need += value.length();
+            fits &= wide || latin1(value);
+        }
+        // claim the space after our chars, or fall back to a bigger copy
+        int capacity = wide ? buf.capacity() / 2 : buf.capacity();
+        if (!fits || charEnd + need > capacity || !charsUsed.compareAndSet(charEnd, charEnd + need)) {
+            return grow(values, need, wide || !fits);
+        }
+        // same for the bounds table
+        int[] b = bounds;
+        AtomicInteger bUsed = boundsUsed;
+        int slots = count * 2;
+        int more = values.length * 2;
+        if (slots + more > b.length || !bUsed.compareAndSet(slots, slots + more)) {
+            b = Arrays.copyOf(bounds, capacity(slots + more));
+            bUsed = new AtomicInteger(slots + more);
+        }
+
+        int end = copy(values, buf, wide, b, slots, charEnd);
+        return new Credentials(buf, wide, charsUsed, b, bUsed, count + values.length, end);
+    }
+
+    private Credentials grow(String[] values, int need, boolean wide) {
+        // copy only the live values, leaving room to append in place next time
+        int live = 0;
+        for (int i = 0; i < count; i++) {
+            live += length(i);
+        }
+        int capacity = capacity(live + need);
+        ByteBuffer b = allocate(wide ? capacity * 2 : capacity);
+        int[] table = new int[capacity((count + values.length) * 2)];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            table[i * 2] = position;
+            for (int j = start(i); j < start(i) + length(i); j++) {
+                put(b, wide, position++, charAt(j));
+            }
+            table[i * 2 + 1] = position;
+        }
+        int end = copy(values, b, wide, table, count * 2, position);
+        int slots = (count + values.length) * 2;
+        return new Credentials(b, wide, new AtomicInteger(end), table, new AtomicInteger(slots),
+                count + values.length, end);
+    }
+
+    Credentials remove(String value) {
+        int[] b = new int[count * 2];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches(i, value)) continue;
+            b[n * 2] = bounds[i * 2];
+            b[n * 2 + 1] = bounds[i * 2 + 1];
+            n++;
+        }
+        if (n == count) return this; // nothing matched
+        // the chars are shared, but the space after them still belongs to whoever claimed it
+        return new Credentials(buf, wide, charsUsed, b, new AtomicInteger(n * 2), n, charEnd);
+    }
+
+    private boolean matches(int i, String value) {
+        int start = start(i);
+        if (length(i) != value.length()) return false;
+        for (int j = 0; j < value.length(); j++) {
+            if (charAt(start + j) != value.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    private static int copy(String[] values, ByteBuffer buf, boolean wide, int[] bounds, int slot, int position) {
+        // write the values from the given char position on and record their bounds
+        for (String value : values) {
+            bounds[slot++] = position;
+            // Char by char, so no other copy of the value is left behind
+            for (int j = 0; j < value.length(); j++) {
+                put(buf, wide, position + j, value.charAt(j));
+            }
+            position += value.length();
+            bounds[slot++] = position;
+        }
+        return position;
+    }
+
+    private static void put(ByteBuffer buf, boolean wide, int position, char c) {
+        if (wide) {
+            buf.putChar(position * 2, c);
+        } else {
+            buf.put(position, (byte) c);
+        }
+    }
+
+    static ByteBuffer allocate(int bytes) {
+        SecretArena a = arena;
+        return a != null ? a.allocate(bytes) : ByteBuffer.allocate(bytes);
+    }
+
+    private static boolean latin1(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) return false;
+        }
+        return true;
+    }
+
+    private static int capacity(int needed) {
+        return Math.max(8, needed + (needed >> 1));
+    }
+
+    private final class View implements CharSequence {
+        private final int from, to; // char positions in the buffer
+
+        View(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int length() {
+            return to - from;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return Credentials.this.charAt(from + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new View(from + start, from + end);
+        }
+
+        @Override
+        public String toString() {
+            // a short-lived copy, for the renderer or the clipboard
+            char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package passwordmanager.storage;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the stored entry for a hostname that isn't stored itself, so a
+ * password saved under {@code example.com} is found from
+ * {@code login.example.com}.
+ * <p>
+ * Keys that look like a domain or a URL are kept in a trie of their labels
+ * from the top-level domain down, so a lookup walks one node per label of the
+ * hostname and keeps the deepest stored key it passes. Matches never climb
+ * into the public suffix of the hostname: nothing saved under {@code co.uk}
+ * is offered to {@code bank.co.uk}.
+ * <p>
+ * Lookups take no locks; keys are added and removed one at a time as the
+ * entries change.
+ */
+final class DomainIndex {
+    private static final String[] NONE = {};
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        volatile String[] keys = NONE; // stored keys naming exactly this domain
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Indexes a stored key, if it names a domain.
+     */
+    synchronized void add(String key) {
+        String domain = normalize(key);
+        if (domain == null) return;
+        String[] labels = labels(domain);
+        Node node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(labels[i], l -> new Node());
+        }
+        for (String k : node.keys) {
+            if (k.equals(key)) return; // already there
+        }
+        String[] keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+        keys[node.keys.length] = key;
+        node.keys = keys;
+    }
+
+    /**
+     * Drops a key that is no longer stored.
+     */
+    synchronized void remove(String key) {
+        String domain = normalize(key);
+        if (domain == null) return;
+        String[] labels = labels(domain);
+        Node[] path = new Node[labels.length + 1];
+        path[0] = root;
+        for (int depth = 1; depth <= labels.length; depth++) {
+            path[depth] = path[depth - 1].children.get(labels[labels.length - depth]);
+            if (path[depth] == null) return; // never indexed
+        }
+        Node node = path[labels.length];
+        node.keys = Arrays.stream(node.keys).filter(k -> !k.equals(key)).toArray(String[]::new);
+        // Prune the branch back up to the nearest node still in use
+        for (int depth = labels.length; depth > 0; depth--) {
+            Node n = path[depth];
+            if (n.keys.length > 0 || !n.children.isEmpty()) break;
+            path[depth - 1].children.remove(labels[labels.length - depth], n);
+        }
+    }
+
+    /**
+     * @return the stored key for the closest domain the hostname falls
+     * under, or null if there is none below its public suffix
+     */
+    String resolve(String hostname) {
+        String domain = normalize(hostname);
+        if (domain == null) return null;
+        String[] labels = labels(domain);
+        int suffix = PublicSuffixes.bundled().suffixLength(labels);
+        String best = null;
+        Node node = root;
+        for (int depth = 1; depth <= labels.length; depth++) {
+            node = node.children.get(labels[labels.length - depth]);
+            if (node == null) break;
+            String[] keys = node.keys;
+            if (depth > suffix && keys.length > 0) best = keys[0];
+        }
+        return best;
+    }
+
+    /**
+     * Reduces a key or hostname to a bare lowercase domain: no scheme, user,
+     * port, path or leading {@code www}.
+     *
+     * @return the domain, or null if it doesn't look like one
+     */
+    static String normalize(String key) {
+        String host = key.strip();
+        int scheme = host.indexOf("://");
+        if (scheme >= 0) host = host.substring(scheme + 3);
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                host = host.substring(0, i); // the path and after
+                break;
+            }
+        }
+        host = host.substring(host.lastIndexOf('@') + 1); // user info
+        int port = host.lastIndexOf(':');
+        if (port >= 0) host = host.substring(0, port);
+        host = PublicSuffixes.ascii(host).toLowerCase(Locale.ROOT);
+        if (host.endsWith(".")) host = host.substring(0, host.length() - 1);
+        if (host.startsWith("www.")) host = host.substring(4);
+        // A domain has at least two labels, none of them empty
+        if (host.indexOf('.') <= 0 || host.endsWith(".") || host.contains("..")) return null;
+        for (int i = 0; i < host.length(); i++) {
+            if (Character.isWhitespace(host.charAt(i))) return null;
+        }
+        return host;
+    }
+
+    /**
+     * @return the dot separated labels, left to right
+     */
+    static String[] labels(String domain) {
+        int count = 1;
+        for (int i = 0; i < domain.length(); i++) {
+            if (domain.charAt(i) == '.') count++;
+        }
+        String[] labels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = domain.indexOf('.', start);
+            if (end < 0) end = domain.length();
+            labels[i] = domain.substring(start, end);
+            start = end + 1;
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,13 @@
+package passwordmanager.storage;
+
+/**
+ * Thrown when a vault is opened with a password other than the one it was
+ * written with. Nothing past the vault header has been read at that point.
+ */
+public class InvalidPasswordException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidPasswordException(String vault) {
+        super("Wrong password for " + vault);
+    }
+}
@@ -0,0 +1,339 @@
+package passwordmanager.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import passwordmanager.crypto.CipherEngine;
+
+/**
+ * Append-only log of {@link Storage} mutations kept next to the vault file.
+ * <pre>
+ * journal = magic "CYFL", header, entry*
+ * entry   = op ('P' put or 'R' remove), record
+ * </pre>
+ * The header block and the records are encoded exactly like those of a vault,
+ * so the header holds the generation of the journal and the cipher its
+ * records are sealed with. The vault header stores the first generation it
+ * does not contain, so journals that were already folded into the vault are
+ * skipped on replay.
+ * <p>
+ * Appends are queued in memory and written by a background committer, which
+ * waits briefly so that a burst of changes goes out as one write and one
+ * fsync (group commit).
+ */
+public class Journal {
+    public static final byte PUT = 'P';
+    public static final byte REMOVE = 'R';
+    private static final byte[] MAGIC = {'C', 'Y', 'F', 'L'};
+    // how long the committer waits for more entries before writing a batch (ms)
+    private static final long COMMIT_DELAY = 20;
+    // how long the committer waits before trying a failed batch again (ms)
+    private static final long RETRY_DELAY = 1000;
+
+    private final File file;
+    private final File old;
+    private final List<ByteBuffer> pending = new ArrayList<>(); // entries not yet written
+    private final Object commitLock = new Object(); // held while the file is written
+    private FileChannel channel;
+    private VaultFormat.Header header; // generation and cipher of the next journal
+    private VaultFormat.Header current; // header of the file being appended to
+    private long headerLength; // bytes taken by that header
+    private CipherEngine engine; // seals new entries
+    private Thread committer;
+    private volatile boolean open;
+    private volatile long commitLatency; // nanoseconds taken by the last commit
+    private final AtomicLong length = new AtomicLong(); // bytes written to the file being appended to
+
+    public Journal(File file) {
+        this.file = file;
+        this.old = new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Replays the rolled over and current journal files into the storage and
+     * opens the current one for appending.
+     *
+     * @param header first generation not contained in the vault, and the
+     * cipher new entries are sealed with
+     */
+    public void open(Storage storage, VaultFormat.Header header, CipherEngine engine) throws IOException {
+        this.header = header;
+        this.engine = engine;
+        replay(old, storage);
+        long valid = replay(file, storage);
+
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (valid == 0) {
+            // new, stale or unreadable journal: start a fresh one
+            channel.truncate(0);
+            current = header;
+            headerLength = channel.write(header());
+        } else {
+            // drop any half written entry left behind by a crash
+            channel.truncate(valid);
+            // entries sealed with another cipher are moved aside for the next save
+            if (!current.sameCipher(header)) rotate();
+        }
+        channel.position(channel.size());
+        length.set(channel.size());
+
+        // start committing queued entries in the background
+        open = true;
+        committer = new Thread(this::commitLoop, "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    private long replay(File f, Storage storage) throws IOException {
+        if (!f.exists()) return 0;
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        VaultFormat.Header found = readHeader(buf);
+        if (found == null) return 0;
+        if (found.getGeneration() < header.getGeneration()) return 0; // already folded into the vault
+        header.setGeneration(found.getGeneration());
+        current = found;
+        headerLength = buf.position();
+        CipherEngine sealed = storage.engineFor(found);
+
+        // apply entries until the end of the file or the first damaged one
+        int valid = buf.position();
+        try {
+            while (buf.hasRemaining()) {
+                byte op = buf.get();
+                int start = buf.position();
+                int length = VaultFormat.readVarint(buf);
+                if (length > buf.remaining()) break;
+                int end = buf.position() + length;
+                Metadata meta;
+                try {
+                    meta = VaultFormat.decode(buf.slice(start, end - start), sealed);
+                } catch (IOException e) {
+                    // a whole entry that fails to authenticate means the wrong key, not a torn write
+                    if (e.getCause() instanceof GeneralSecurityException) throw e;
+                    break;
+                }
+                storage.apply(op, meta);
+                buf.position(end);
+                valid = end;
+            }
+        } catch (BufferUnderflowException e) {
+            // torn entry at the end of the file
+        }
+        return valid;
+    }
+
+    public void append(byte op, Metadata meta) {
+        ByteBuffer record;
+        try {
+            record = VaultFormat.encode(meta, engine);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(1 + record.remaining());
+        entry.put(op).put(record).flip();
+        synchronized (this) {
+            pending.add(entry);
+            notify(); // wake the committer
+        }
+    }
+
+    private void commitLoop() {
+        long delay = COMMIT_DELAY;
+        while (open) {
+            try {
+                synchronized (this) {
+                    while (pending.isEmpty() && open) wait();
+                }
+                // give the rest of a burst a moment to arrive
+                Thread.sleep(delay);
+                commit();
+                delay = COMMIT_DELAY;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // the batch is back in the queue, so try again in a while, or on close
+                System.err.println("Failed to commit journal\nReason: " + e.getMessage());
+                delay = RETRY_DELAY;
+            }
+        }
+    }
+
+    /**
+     * Writes every queued entry in one go and forces it to disk. Should that
+     * fail, the file is cut back to where the batch started and the batch is
+     * queued again ahead of anything appended meanwhile.
+     */
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            ByteBuffer[] batch;
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+                batch = pending.toArray(ByteBuffer[]::new);
+                pending.clear();
+            }
+            long start = System.nanoTime();
+            long before = length.get();
+            long remaining = 0;
+            for (ByteBuffer entry : batch) {
+                remaining += entry.remaining();
+            }
+            try {
+                while (remaining > 0) {
+                    remaining -= channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // a torn entry would end replay there, and hide every entry after it
+                try {
+                    channel.truncate(before);
+                    channel.position(before);
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
+                for (ByteBuffer entry : batch) {
+                    entry.rewind();
+                }
+                synchronized (this) {
+                    pending.addAll(0, List.of(batch));
+                }
+                throw e;
+            }
+            length.set(channel.position());
+            commitLatency = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return bytes in the journal file, read without waiting for a commit
+     */
+    public long size() {
+        return length.get();
+    }
+
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+
+    public long getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Moves the current journal aside and starts the next generation.
+     *
+     * @return the generation of the new journal
+     */
+    public int rollover() throws IOException {
+        synchronized (commitLock) {
+            // queued entries belong to the journal being rolled over
+            commit();
+            return rotate();
+        }
+    }
+
+    private int rotate() throws IOException {
+        if (old.exists()) {
+            // an earlier save did not finish, so keep its entries and add ours after them
+            if (channel.size() > headerLength) {
+                if (!current.sameCipher(readHeader(old))) {
+                    throw new IOException("Rolled over journal is sealed with another cipher");
+                }
+                try (FileChannel target = FileChannel.open(old.toPath(), StandardOpenOption.APPEND)) {
+                    channel.transferTo(headerLength, channel.size() - headerLength, target);
+                }
+            }
+            channel.close();
+            Files.delete(file.toPath());
+        } else {
+            channel.close();
+            Files.move(file.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        header.setGeneration(header.getGeneration() + 1);
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        current = header;
+        headerLength = channel.write(header());
+        length.set(headerLength);
+        return header.getGeneration();
+    }
+
+    public boolean hasRolledOver() {
+        return old.exists();
+    }
+
+    /**
+     * Deletes the rolled over journal once the vault contains its entries.
+     */
+    public void discardOld() throws IOException {
+        Files.deleteIfExists(old.toPath());
+    }
+
+    public void close() throws IOException {
+        // stop the committer, then write whatever it had not got to yet
+        open = false;
+        synchronized (this) {
+            notify();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (commitLock) {
+            commit();
+            channel.close();
+        }
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer block = header.encode();
+        return ByteBuffer.allocate(MAGIC.length + block.remaining()).put(MAGIC).put(block).flip();
+    }
+
+    private static VaultFormat.Header readHeader(File f) throws IOException {
+        try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(256); // headers are a few dozen bytes
+            c.read(buf, 0);
+            VaultFormat.Header found = readHeader(buf.flip());
+            if (found == null) throw new IOException("Unreadable journal " + f.getName());
+            return found;
+        }
+    }
+
+    /**
+     * Reads the header of a journal, leaving the buffer at the first entry.
+     *
+     * @return the header, or null when the buffer does not hold a journal
+     */
+    private static VaultFormat.Header readHeader(ByteBuffer buf) {
+        try {
+            if (startsWith(buf, MAGIC)) {
+                VaultFormat.Header found = new VaultFormat.Header(VaultFormat.VERSION);
+                found.read(buf);
+                return found;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // cut short
+        }
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] magic) {
+        if (buf.remaining() < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (buf.get(buf.position() + i) != magic[i]) return false;
+        }
+        buf.position(buf.position() + magic.length);
+        return true;
+    }
+}
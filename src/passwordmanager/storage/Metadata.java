@@ -1,38 +1,107 @@
 package passwordmanager.storage;
 
-import java.util.Arrays;
-import passwordmanager.PasswordManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import passwordmanager.crypto.CipherEngine;
 
+/**
+ * Immutable snapshot of the credentials stored under one key. Every change
+ * returns a new snapshot, so one that has been handed out can be read from
+ * any thread while {@link Storage} publishes newer ones.
+ * <p>
+ * A snapshot read from the vault keeps its sealed record exactly as it is
+ * stored and only opens it the first time its values are needed. Saving
+ * copies those records as they are and only seals and encodes the entries
+ * that are dirty, meaning they were changed since the vault was last written.
+ */
 public class Metadata {
     private final String key; // The key (e.g., website name) associated with this metadata.
-    private String[] data; // The array of credentials associated with the key.
-    private boolean encrypted; // Flag to indicate whether the data is encrypted.
+    private volatile Credentials data; // The credentials associated with the key, null until opened.
+    private volatile ByteBuffer record; // The sealed record as stored, null once changed.
+    private final CipherEngine engine; // The engine the record was sealed with.
+    private final VaultIndex index; // Where to read the record from when it isn't in memory yet.
+    volatile long offset; // Position of the record body in the vault file.
+    final int length; // Length of the record body.
 
-    public Metadata(String key, boolean encrypted, String... data) {
-        this.key = key; // Assign the key
-        this.encrypted = encrypted; // Set the initial encryption state
-        this.data = data; // Store the data (credentials)
+    public Metadata(String key, String... data) {
+        this(key, Credentials.of(data)); // Store the data (credentials)
     }
 
-    public void decrypt() {
-        if (!encrypted) return; // If already decrypted, exit the method.
+    Metadata(String key, Credentials data) {
+        this(key, data, null, null);
+    }
 
-        // Decrypt each data entry using PasswordManager's Cyfer method.
-        for (int i = 0; i < data.length; i++) {
-            data[i] = PasswordManager.Cyfer(data[i]);
-        }
-        encrypted = false; // Mark the data as decrypted.
+    private Metadata(String key, Credentials data, ByteBuffer record, CipherEngine engine) {
+        this.key = key;
+        this.data = data;
+        this.record = record;
+        this.engine = engine;
+        this.index = null;
+        this.length = 0;
     }
 
+    Metadata(String key, ByteBuffer record, CipherEngine engine) {
+        // Entry read from the vault, its values are opened when first used
+        this(key, null, record, engine);
+    }
 
-    public void encrypt() {
-        if (encrypted) return; // If already encrypted, exit the method.
+    Metadata(String key, VaultIndex index, CipherEngine engine, long offset, int length) {
+        // Entry whose record is only read from the vault when first used
+        this.key = key;
+        this.engine = engine;
+        this.index = index;
+        this.offset = offset;
+        this.length = length;
+    }
 
-        // Encrypt each data entry using PasswordManager's Cyfer method.
-        for (int i = 0; i < data.length; i++) {
-            data[i] = PasswordManager.Cyfer(data[i]);
+    Credentials load() {
+        Credentials d = data;
+        if (d != null) return d; // Already opened.
+        synchronized (this) {
+            if (data == null) {
+                try {
+                    // Read the record from the vault unless it is already in memory
+                    ByteBuffer r = record != null ? record : index.record(this);
+                    data = VaultFormat.open(r, engine);
+                    record = r;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to open " + key, e);
+                }
+            }
+            return data;
         }
-        encrypted = true; // Mark the data as encrypted.
+    }
+
+    public boolean isDirty() {
+        // Changed since the vault was last written, so it has to be sealed again
+        return record == null && index == null;
+    }
+
+    boolean sealedWith(CipherEngine engine) {
+        return this.engine == engine;
+    }
+
+    ByteBuffer record() throws IOException {
+        // The sealed record as stored, read from the vault if it hasn't been opened yet.
+        ByteBuffer r = record;
+        if (r != null) return r.duplicate();
+        return index.record(this);
+    }
+
+    Metadata stored(ByteBuffer record, CipherEngine engine) {
+        // The same snapshot, now that the record has been written to the vault
+        return new Metadata(key, load(), record, engine);
+    }
+
+    void relocate(long offset) {
+        // Called by the index once the vault has been rewritten.
+        this.offset = offset;
+    }
+
+    public Metadata decrypted() {
+        // Opens the record in place, the values it holds don't change.
+        load();
+        return this;
     }
 
     public String getKey() {
@@ -40,23 +109,37 @@ public class Metadata {
     }
 
     public String[] getData() {
-        return data;
+        // Copies every credential out into its own String; prefer size() and get().
+        return load().toArray();
+    }
+
+    public int size() {
+        return load().size();
+    }
+
+    public String get(int i) {
+        return load().get(i);
+    }
+
+    public CharSequence view(int i) {
+        // Reads the value where it is stored; only toString() copies it out.
+        return load().view(i);
     }
 
-    public void putData(String[] d) {
-        String[] combined = new String[data.length + d.length];
-        System.arraycopy(data, 0, combined, 0, data.length); // Copy existing data.
-        System.arraycopy(d, 0, combined, data.length, d.length); // Append new data.
-        this.data = combined; // Update the data array.
+    public Metadata append(String[] d) {
+        // Appends into the shared buffer when there is room, amortized O(1).
+        return new Metadata(key, load().append(d));
     }
 
-    public void remove(String dat) {
-        // Filter out the data entry that matches the given value and update the data array.
-        data = Arrays.stream(data).filter(d -> !d.equals(dat))
-                .toArray(String[]::new);
+    public Metadata without(String dat) {
+        // Filter out the data entry that matches the given value.
+        Credentials values = load();
+        Credentials rest = values.remove(dat);
+        return rest == values ? this : new Metadata(key, rest); // nothing matched, nothing to save
     }
 
     public boolean isEncrypted() {
-        return encrypted;
+        // Still sealed, nothing has needed its values yet.
+        return data == null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,113 @@
+package passwordmanager.storage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The public suffixes ({@code com}, {@code co.uk}, {@code github.io}, ...)
+ * from the copy of the Public Suffix List bundled with the app, so no lookup
+ * ever goes over the network.
+ * <p>
+ * The rules are kept in a trie of reversed labels, so finding the suffix of a
+ * hostname takes one map lookup per label.
+ */
+final class PublicSuffixes {
+    private static final String RESOURCE = "resources/public_suffix_list.dat";
+
+    private static final class Rule {
+        final Map<String, Rule> children = new HashMap<>();
+        boolean suffix; // a rule ends here
+        boolean exception; // a "!" rule ends here, so the label is registrable after all
+    }
+
+    private final Rule root = new Rule();
+
+    /**
+     * The bundled list, read the first time it is needed.
+     */
+    static PublicSuffixes bundled() {
+        return Bundled.LIST;
+    }
+
+    private static final class Bundled {
+        static final PublicSuffixes LIST = load();
+
+        private static PublicSuffixes load() {
+            PublicSuffixes suffixes = new PublicSuffixes();
+            try (InputStream in = PublicSuffixes.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+                if (in == null) throw new IOException("Missing " + RESOURCE);
+                suffixes.read(in);
+            } catch (IOException e) {
+                // Every top-level domain still counts as a suffix
+                System.err.println("Failed to read public suffixes\nReason: " + e.getMessage());
+            }
+            return suffixes;
+        }
+    }
+
+    void read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("//")) continue; // comments
+            int space = line.indexOf(' ');
+            add(space < 0 ? line : line.substring(0, space));
+        }
+    }
+
+    private void add(String rule) {
+        boolean exception = rule.startsWith("!");
+        if (exception) rule = rule.substring(1);
+        String[] labels = DomainIndex.labels(ascii(rule));
+        Rule node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(labels[i], l -> new Rule());
+        }
+        if (exception) node.exception = true;
+        else node.suffix = true;
+    }
+
+    /**
+     * @param labels the labels of a hostname, left to right
+     * @return how many labels on the right make up its public suffix, at
+     * least one since every top-level domain is one
+     */
+    int suffixLength(String[] labels) {
+        int length = 1;
+        Rule node = root;
+        for (int depth = 1; depth <= labels.length; depth++) {
+            Rule next = node.children.get(labels[labels.length - depth]);
+            if (next != null && next.exception) return depth - 1;
+            if (node.children.containsKey("*")) length = depth; // a wildcard takes any label
+            if (next == null) break;
+            if (next.suffix) length = depth;
+            node = next;
+        }
+        return length;
+    }
+
+    /**
+     * Hostnames arrive from the browser in their ASCII form.
+     */
+    static String ascii(String domain) {
+        for (int i = 0; i < domain.length(); i++) {
+            if (domain.charAt(i) >= 0x80) return idn(domain);
+        }
+        return domain; // nearly every rule and hostname
+    }
+
+    private static String idn(String domain) {
+        try {
+            return IDN.toASCII(domain, IDN.ALLOW_UNASSIGNED);
+        } catch (IllegalArgumentException e) {
+            return domain; // not a hostname, kept as written
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package passwordmanager.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Direct memory that decrypted credentials are packed into instead of the
+ * heap.
+ * <p>
+ * Space is handed out from large direct slabs by bumping an offset, so the
+ * values of thousands of sites end up in a handful of buffers the garbage
+ * collector never has to copy or scan. Space is not reused while the arena
+ * is open; values that grow are copied further along and the old bytes stay
+ * until {@link #wipe()} zeroes every slab at once, which is what makes wiping
+ * deterministic where heap copies left behind by the collector are not.
+ */
+final class SecretArena {
+    // size of each slab; values larger than this get a buffer of their own
+    private static final int SLAB = 1 << 16;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>(); // everything handed out, for wiping
+    private ByteBuffer current; // slab being filled
+    private boolean wiped;
+
+    /**
+     * @return a zeroed buffer of exactly {@code bytes}, backed by direct memory
+     */
+    synchronized ByteBuffer allocate(int bytes) {
+        if (wiped) throw new IllegalStateException("Secret arena has been wiped");
+        if (bytes > SLAB / 4) {
+            // large values would waste most of a slab
+            ByteBuffer own = ByteBuffer.allocateDirect(bytes);
+            slabs.add(own);
+            return own;
+        }
+        if (current == null || current.remaining() < bytes) {
+            current = ByteBuffer.allocateDirect(SLAB);
+            slabs.add(current);
+        }
+        ByteBuffer slice = current.slice(current.position(), bytes);
+        current.position(current.position() + bytes);
+        return slice;
+    }
+
+    /**
+     * Zeroes every slab. Values that still point into the arena read as NUL
+     * chars from then on, and nothing more can be allocated.
+     */
+    synchronized void wipe() {
+        byte[] zeros = new byte[SLAB];
+        for (ByteBuffer slab : slabs) {
+            for (int i = 0; i < slab.capacity(); i += zeros.length) {
+                slab.put(i, zeros, 0, Math.min(zeros.length, slab.capacity() - i));
+            }
+        }
+        slabs.clear();
+        current = null;
+        wiped = true;
+    }
+}
@@ -1,157 +1,444 @@
 package passwordmanager.storage;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.*;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import javax.crypto.SecretKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import passwordmanager.crypto.AesGcmEngine;
+import passwordmanager.crypto.CipherEngine;
+import passwordmanager.crypto.KeyDerivation;
+import passwordmanager.crypto.XorCyfer;
+import passwordmanager.tasks.AsyncTask;
 
 
 public class Storage {
-    private Map<String,Metadata> data = new HashMap<>();
+    // Fold the journal into the vault once it grows past this many bytes.
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+    // Vaults this large only have their keys read up front.
+    private static final long LAZY_THRESHOLD = 4 << 20;
+    // Keep decrypted values in direct memory that is wiped on close (-Dcyferkey.offheap=true)
+    private static final boolean OFF_HEAP = Boolean.getBoolean("cyferkey.offheap");
+    // Lock-free reads; writes only contend on the same key
+    private final ConcurrentMap<String,Metadata> data = new ConcurrentHashMap<>();
+    // The keys of data that name a domain, for hostnames that aren't stored themselves
+    private final DomainIndex domains = new DomainIndex();
     private File file;
+    private final Journal journal;
+    private VaultIndex index; // Set when entries are loaded on demand
+    private final Object saveLock = new Object(); // held while the vault file is rewritten
+    // Shared by writers, taken alone by save() to start a new journal and snapshot the entries
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final XorCyfer legacy; // Opens vaults still in the legacy text format
+    private CipherEngine engine; // Seals everything this session writes
+    private byte[] salt; // The engine's key was derived with this
+    private int iterations; // and this many rounds, tuned to the machine the vault was made on
+    private byte[] verifier; // Shows the key is the right one without decrypting a record
+    private String password; // Only kept while the vault and journals are read
+    private final SecretArena arena = OFF_HEAP ? new SecretArena() : null; // Holds the decrypted values
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>(); // Told the key of every change
 
-    public Storage(String username) {
+    public Storage(String username, String password) {
+        this(username, password, sample -> false);
+    }
+
+    /**
+     * Opens the vault of the given user. A vault still in the legacy text
+     * format opens under any password, so before it is moved to the current
+     * format one of its entries is decrypted and handed to {@code confirm}.
+     * Unless that accepts it, nothing is written and InvalidPasswordException
+     * is thrown. The legacy file is kept next to the vault as
+     * {@code <name>.legacy} and never deleted.
+     */
+    public Storage(String username, String password, Predicate<Metadata> confirm) {
         // Get storage file based of username
         file = Path.of("")
                 .toAbsolutePath()
                 .resolve("data/" + username + ".encrypt")
                 .toFile();
+        journal = new Journal(new File(file.getParentFile(), username + ".journal"));
+        this.password = password;
+        legacy = new XorCyfer(password);
+        // Values decrypted while the vault and journals are read already go off heap
+        if (arena != null) Credentials.arena = arena;
         
-        // Check if the file exists. If not, create a new file and its parent directories.
-        if (!file.exists()) {
-            file.getParentFile().mkdir();
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            // If the file exists, read its content to populate the data map.
-            try (FileReader reader = new FileReader(file)) {
-                State STATE = State.KEY; // Initial state is to read the key.
-                StringBuilder currentKey = new StringBuilder(); // To store the current key being read.
-                StringBuilder currentValue = new StringBuilder(); // To store the current value being read.
-                List<String> values = new ArrayList<>(); // To collect values associated with a key.
-                short currentLength = 0; // Length of the current value being processed.
-                short pos = 0; // Position in the current value being processed.
-                short byte2;
-
-                // Read the file character by character.
-                while ((byte2 = (short) reader.read()) != -1) {
-                    char record = (char) byte2; // Convert the byte to a character.
-                    
-                    // Switch between different states: reading key, value, or size
-                    switch (STATE) {
-                        case KEY -> {
-                            if (record == '#') {
-                                // Transition to SIZE state when '#' is encountered
-                                STATE = State.SIZE;
-                                continue;
-                            }
-                            currentKey.append(record);
-                        }
-                        case VALUE -> {
-                            if (pos == currentLength) {
-                                values.add(currentValue.toString());
-                                // Reset the current value builder.
-                                currentValue = new StringBuilder();
-                                
-                                if (record == '#') {
-                                    STATE = State.SIZE; // Transition to SIZE state.
-                                } else {
-                                    STATE = State.KEY; // Transition back to KEY state
-                                    String key = currentKey.toString();
-                                    // Reset the current key builder.
-                                    currentKey = new StringBuilder();
-                                    // Store the key-value pair in the data map.
-                                    data.put(key, new Metadata(key, true, values.toArray(String[]::new)));
-                                    values.clear();
-                                    currentKey.append(record);
-                                }
-                                pos = 0; // Reset the position counter.
-                            } else {
-                                currentValue.append(record); // Append character to the current value
-                                pos++;
-                            }
-                        }
-                        case SIZE -> {
-                            currentLength = byte2; // Set the current value length.
-                            STATE = State.VALUE; // Transition to VALUE state
-                        }
+        try {
+            VaultFormat.Header header = null;
+            boolean legacyFile = false;
+            // Check if the file exists. If not, create its parent directories.
+            if (!file.exists()) {
+                file.getParentFile().mkdir();
+                header = new VaultFormat.Header(0); // written out below
+                open(header);
+            } else {
+                // Large vaults only get their keys read now. Each entry
+                // reads its values the first time they are used.
+                if (file.length() >= LAZY_THRESHOLD) {
+                    index = new VaultIndex(file);
+                    header = index.scan(data, this::open);
+                    if (header == null) {
+                        // Not in the binary format yet, so it is read in full and migrated
+                        index.close();
+                        index = null;
                     }
                 }
-                
-                // After reading the file, handle any remaining key and value.
-                String key = currentKey.toString();
-                if (key.isEmpty()) return; // return if no key exists
-                // Add the last value.
-                values.add(currentValue.toString());
-                // Store the final key-value pair in the data map.
-                data.put(key, new Metadata(key, true, values.toArray(String[]::new)));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                // Otherwise, read its whole content to populate the data map.
+                if (header == null) header = StorageReader.read(file, data, this::open);
+                // The XOR cyfer decrypts under any key, only the user can tell it got the right one
+                if (header.getVersion() == 0 && !data.isEmpty()) {
+                    Metadata sample = data.get(Collections.min(data.keySet()));
+                    if (!confirm.test(sample)) throw new InvalidPasswordException(file.getName());
+                }
+                legacyFile = header.getVersion() == 0;
+            }
+            // Apply every change made since the vault was last written.
+            journal.open(this, header(header.getGeneration()), engine);
+            // Kept up to date by put and remove from here on
+            data.keySet().forEach(domains::add);
+            // Reading the suffix list takes a while on a cold start, so it is not left to the first lookup
+            new AsyncTask("suffixes", PublicSuffixes::bundled);
+            // Legacy files, and journals left over from an interrupted
+            // compaction, are folded into a fresh vault straight away.
+            if (header.getVersion() == 0 || journal.hasRolledOver()) {
+                if (legacyFile) backUp();
+                // Nothing is written on top of a vault that still has to move to AES
+                if (!save() && header.getVersion() == 0) {
+                    throw new IOException("Failed to migrate " + file.getName());
+                }
+            }
+        } catch (IOException e) {
+            releaseArena();
+            throw new RuntimeException(e);
+        } catch (InvalidPasswordException e) {
+            // Let go of the vault file before the user tries again
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
             }
+            // along with anything decrypted before the password turned out wrong
+            releaseArena();
+            throw e;
+        } finally {
+            this.password = null;
         }
     }
+
+    private CipherEngine open(VaultFormat.Header header) {
+        // Everything is written with AES from now on, under the vault's own key once it has one
+        try {
+            if (header.getVersion() == 0) {
+                // New vault, or one moving off the legacy text format: time the derivation on this machine
+                salt = KeyDerivation.salt();
+                iterations = KeyDerivation.calibrate();
+            } else {
+                salt = header.getSalt();
+                iterations = header.getIterations();
+            }
+            // The one slow step of a login, done once for the whole session
+            SecretKey key = KeyDerivation.derive(password, salt, iterations);
+            verifier = KeyDerivation.verifier(key);
+            engine = new AesGcmEngine(key);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        // Stop before a single record is read
+        if (header.getVersion() != 0 && !MessageDigest.isEqual(header.getVerifier(), verifier)) {
+            throw new InvalidPasswordException(file.getName());
+        }
+        try {
+            return engineFor(header);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the engine that opens records written under the given header.
+     */
+    CipherEngine engineFor(VaultFormat.Header header) throws IOException {
+        if (header.getVersion() == 0) return legacy;
+        if (header.getCipher() != CipherEngine.AES_GCM) throw new IOException("Unknown cipher " + header.getCipher());
+        if (Arrays.equals(header.getSalt(), salt) && header.getIterations() == iterations) return engine;
+        try {
+            // A journal from a session whose migration never reached the vault
+            return new AesGcmEngine(KeyDerivation.derive(password, header.getSalt(), header.getIterations()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private VaultFormat.Header header(int generation) {
+        VaultFormat.Header header = new VaultFormat.Header(VaultFormat.VERSION);
+        header.setGeneration(generation);
+        header.setCipher(engine.getId());
+        header.setSalt(salt);
+        header.setIterations(iterations);
+        header.setVerifier(verifier);
+        return header;
+    }
     
     public void remove(String key, String dat) {
-        Metadata meta = data.get(key); // Fetch the metadata associated with the key
-        if (meta == null) return; // return if key isn't valid
-        
-        if (meta.getData().length == 1) {
-            // If there's only one value, remove the key entirely
-            data.remove(key);
-            return;
+        Metadata removal = new Metadata(key, dat); // sealed when it is encoded
+        boolean[] removed = new boolean[1];
+        lock.readLock().lock();
+        try {
+            data.computeIfPresent(key, (k, meta) -> {
+                // Remove the specified value from the metadata
+                Metadata rest = removed(meta, dat);
+                if (rest == meta) return meta; // no such value: nothing to journal or save
+                // Record the removal in the journal before applying it
+                journal.append(Journal.REMOVE, removal);
+                if (rest == null) domains.remove(k);
+                removed[0] = true;
+                return rest;
+            });
+        } finally {
+            lock.readLock().unlock();
         }
-        // Remove the specified value from the metadata
-        meta.remove(dat); 
+        if (!removed[0]) return;
+        changed(key);
+        compactIfNeeded();
+    }
+
+    private static Metadata removed(Metadata meta, String dat) {
+        // If there's only one value, remove the key entirely
+        if (meta.size() == 1) return null;
+        return meta.without(dat);
     }
 
     public Metadata fetch(String key){
         return data.get(key);
     }
 
+    /**
+     * Finds the entry for a website: the one stored under it, or else the one
+     * stored under the closest domain it falls under, so {@code example.com}
+     * is found for {@code login.example.com}.
+     */
+    public Metadata find(String website) {
+        Metadata meta = data.get(website);
+        if (meta != null) return meta;
+        String key = domains.resolve(website);
+        return key != null ? data.get(key) : null;
+    }
+
+    /**
+     * Finds the entries of several websites in one go and opens the records
+     * of the ones found.
+     *
+     * @return the entries in the order of the websites, null where none was found
+     * @see #find(String)
+     */
+    public Metadata[] find(String... websites) {
+        Metadata[] found = new Metadata[websites.length];
+        int n = 0;
+        for (int i = 0; i < websites.length; i++) {
+            if ((found[i] = find(websites[i])) != null) n++;
+        }
+        Metadata[] open = new Metadata[n];
+        n = 0;
+        for (Metadata meta : found) {
+            if (meta != null) open[n++] = meta;
+        }
+        try {
+            BulkCrypto.open(open);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return found;
+    }
+
     public Metadata[] fetchAll(){
         return data.values().toArray(Metadata[]::new);
     }
 
     public void put(Metadata meta) {
-        Metadata m = data.get(meta.getKey()); // Check if the key already exists.
-        if (m == null) {
-            data.put(meta.getKey(), meta); // add key if there is no key already.
-        } else {
-            m.decrypt(); // Decrypt existing data.
-            m.putData(meta.getData()); // Merge the new data with existing data.
+        lock.readLock().lock();
+        try {
+            data.compute(meta.getKey(), (k, m) -> {
+                // Record the new values in the journal before applying them
+                journal.append(Journal.PUT, meta);
+                if (m == null) {
+                    // add key if there is no key already.
+                    domains.add(k);
+                    return meta;
+                }
+                // Merge the new data with the existing data.
+                return m.append(meta.getData());
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        changed(meta.getKey());
+        compactIfNeeded();
+    }
+
+    /**
+     * Opens the record of an entry. The entry keeps the values, so later
+     * lookups don't have to decrypt it again.
+     */
+    public Metadata decrypt(Metadata meta) {
+        return meta.decrypted();
+    }
+
+    void apply(byte op, Metadata meta) {
+        // Replay a journal entry. Its values were opened while it was read.
+        if (op == Journal.PUT) {
+            data.merge(meta.getKey(), meta, (m, d) -> m.append(d.getData()));
+        } else if (op == Journal.REMOVE) {
+            data.computeIfPresent(meta.getKey(), (k, m) -> removed(m, meta.get(0)));
+        }
+    }
+
+    /**
+     * Registers a callback for the key of every entry changed by
+     * {@link #put} or {@link #remove}, once the change is in place.
+     */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    private void changed(String key) {
+        for (Consumer<String> listener : listeners) {
+            listener.accept(key);
         }
     }
 
+    private void compactIfNeeded() {
+        // Fold the journal into the vault in the background once it gets large
+        if (journal.size() > COMPACT_THRESHOLD) new AsyncTask("compact", this::save);
+    }
+
     public boolean save() {
-        try {
-            FileWriter writer = new FileWriter(file); // Open a writer to the file.
-            
-            for (Metadata meta : data.values()) {
-                // Encrypt the data before saving.
-                meta.encrypt();
-                // Write the key.
-                writer.append(meta.getKey());
+        File temp = new File(file.getPath() + ".tmp");
+        synchronized (saveLock) {
+            try {
+                Metadata[] entries;
+                VaultFormat.Header header;
+                lock.writeLock().lock();
+                try {
+                    // Start a new journal for changes made while the vault is written
+                    header = header(journal.rollover());
+                    // The entries are immutable, so holding on to them is a consistent snapshot
+                    entries = fetchAll();
+                } finally {
+                    lock.writeLock().unlock();
+                }
                 
-                for (String value : meta.getData()) {
-                    // Write the value length and data.
-                    writer.append("#").append((char) value.length());
-                    writer.append(value);
+                // Only changed entries are sealed and encoded, spread over the cores for large vaults
+                ByteBuffer[] encoded = BulkCrypto.seal(entries, engine); // new records, null where unchanged
+                // Write the new vault next to the old one
+                long[] offsets = new long[entries.length]; // where each record body ends up
+                try (FileOutputStream stream = new FileOutputStream(temp);
+                        OutputStream out = new BufferedOutputStream(stream, 1 << 16)) {
+                    // Write the format header.
+                    long position = VaultFormat.writeHeader(out, header);
+                    
+                    for (int i = 0; i < entries.length; i++) {
+                        // The rest are copied as stored.
+                        ByteBuffer record = encoded[i] != null ? encoded[i] : entries[i].record();
+                        position += VaultFormat.writeRecord(out, record);
+                        offsets[i] = position - entries[i].length;
+                    }
+                    out.flush();
+                    stream.getFD().sync(); // make sure it is on disk before it replaces the old one
+                }
+                // Swap it in, so a crash leaves either the old or the new vault
+                if (index != null) {
+                    // Entries that are still unloaded now read from the new file
+                    index.replace(temp, entries, offsets);
+                } else {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    syncDirectory(file);
+                }
+                // The vault now holds everything in the old journal
+                journal.discardOld();
+                for (int i = 0; i < entries.length; i++) {
+                    // Keep the new records, unless the entry changed again in the meantime
+                    if (encoded[i] == null) continue;
+                    data.replace(entries[i].getKey(), entries[i], entries[i].stored(encoded[i], engine));
                 }
+                return true; // Return true if saving was successful.
+            } catch (IOException e) {
+                // The old vault and the journals are still intact
+                System.err.println("Failed to save storage\nReason: " + e.getMessage());
+                temp.delete();
+                return false; // Return false if an error occurred during saving.
             }
-            // Flush the writer to ensure all data is written.
-            writer.flush();
-            writer.close();
-            return true; // Return true if saving was successful.
-        } catch (IOException e) {
-            return false; // Return false if an error occurred during saving.
         }
     }
 
-    private enum State {
-        KEY,
-        VALUE,
-        SIZE
+    public int getQueueDepth() {
+        return journal.getQueueDepth(); // changes waiting to be committed
+    }
+
+    public long getCommitLatency() {
+        return journal.getCommitLatency(); // nanoseconds taken by the last commit
+    }
+
+    public void close() {
+        synchronized (saveLock) {
+            // Waits for a running compaction, then commits and releases the journal
+            try {
+                journal.close();
+                if (index != null) index.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close storage\nReason: " + e.getMessage());
+            }
+            // Nothing decrypted outlives the session
+            releaseArena();
+        }
+    }
+
+    private void backUp() throws IOException {
+        // Left in place even once the vault is migrated, so a mistyped password can't lose it
+        File copy = new File(file.getPath() + ".legacy");
+        if (copy.exists()) return; // From an earlier attempt that never got as far as the save
+        Files.copy(file.toPath(), copy.toPath());
+        try (FileChannel channel = FileChannel.open(copy.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces the directory entry of a file just renamed into place to disk,
+     * so the rename survives a crash as well as the file's contents. Where a
+     * directory can't be opened, Windows among them, this does nothing and
+     * the rename may not be durable until the file system flushes it.
+     */
+    static void syncDirectory(File file) throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException e) {
+            return;
+        }
+        try (dir) {
+            dir.force(true);
+        }
+    }
+
+    private void releaseArena() {
+        if (arena == null) return;
+        if (Credentials.arena == arena) Credentials.arena = null;
+        arena.wipe();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,137 @@
+package passwordmanager.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import passwordmanager.crypto.CipherEngine;
+
+/**
+ * Bulk loader for .encrypt vault files.
+ * <p>
+ * Files in the binary {@link VaultFormat} are streamed into it record by
+ * record. Anything else is treated as the legacy text format: read in one go
+ * (memory mapped when it is large), decoded to a single char buffer and
+ * parsed in place. The legacy grammar is a key followed by one or more
+ * {@code '#' <length> <value>} groups. Its values were cyfered one by one,
+ * so each entry keeps them as a record sealed by the XOR cyfer.
+ */
+public class StorageReader {
+    // files at or above this size are memory mapped instead of copied onto the heap
+    private static final long MAP_THRESHOLD = 1 << 20;
+    // FileReader reports this char as end of stream, so the old parser stopped at it
+    private static final char END = (char) -1;
+
+    /**
+     * Reads the vault file into the given map.
+     *
+     * @param engines picks the engine the records were sealed with from the header
+     * @return the header of the file, with version 0 for the legacy text format
+     */
+    public static VaultFormat.Header read(File file, Map<String, Metadata> data,
+            Function<VaultFormat.Header, CipherEngine> engines) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            // binary vaults are streamed record by record
+            VaultFormat.Header header = VaultFormat.read(in, data, engines);
+            if (header != null) return header;
+        }
+        ByteBuffer bytes = load(file);
+        VaultFormat.Header header = new VaultFormat.Header(0);
+        // decode the same way FileReader did (default charset, replace bad input)
+        CharBuffer chars = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+        parse(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining(), data,
+                engines.apply(header));
+        return header;
+    }
+
+    static ByteBuffer load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            return size >= MAP_THRESHOLD
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) // map large vaults
+                    : ByteBuffer.wrap(Files.readAllBytes(file.toPath())); // copy small ones
+        }
+    }
+
+    static void parse(char[] c, int offset, int length, Map<String, Metadata> data, CipherEngine engine) {
+        int n = offset + length;
+        // stop where the old char-by-char reader would have seen end of stream
+        for (int i = offset; i < n; i++) {
+            if (c[i] == END) {
+                n = i;
+                break;
+            }
+        }
+
+        List<String> values = new ArrayList<>(); // values collected for the current key
+        int i = offset;
+        while (i < n) {
+            // KEY: everything up to the first '#'
+            int start = i;
+            while (i < n && c[i] != '#') i++;
+            String key = new String(c, start, i - start);
+            if (i == n) {
+                // key without any value at the end of the file
+                values.add("");
+                store(key, values, data, engine);
+                return;
+            }
+            i++; // skip '#'
+
+            while (true) {
+                if (i == n) {
+                    // file ended where a size was expected
+                    values.add("");
+                    store(key, values, data, engine);
+                    return;
+                }
+                // SIZE: a single char holding the value length
+                int end = i + 1 + c[i];
+                i++;
+                if (end >= n) {
+                    // last value of the file (possibly cut short)
+                    values.add(new String(c, i, Math.min(end, n) - i));
+                    store(key, values, data, engine);
+                    return;
+                }
+                // VALUE: copy the whole run at once
+                values.add(new String(c, i, end - i));
+                i = end;
+                if (c[i] == '#') {
+                    i++; // another value for the same key
+                } else {
+                    // the next key starts right after the value
+                    data.put(key, entry(key, values, engine));
+                    values.clear();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void store(String key, List<String> values, Map<String, Metadata> data, CipherEngine engine) {
+        if (key.isEmpty()) return; // nothing was read for the last key
+        data.put(key, entry(key, values, engine));
+    }
+
+    private static Metadata entry(String key, List<String> values, CipherEngine engine) {
+        // the values are still cyfered, so they go into the record as they are
+        ByteBuffer sealed = VaultFormat.values(Credentials.of(values.toArray(String[]::new)));
+        return new Metadata(key, VaultFormat.record(key, sealed), engine);
+    }
+}
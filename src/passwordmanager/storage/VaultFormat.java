@@ -0,0 +1,434 @@
+package passwordmanager.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+import passwordmanager.crypto.CipherEngine;
+
+/**
+ * Binary vault format.
+ * <pre>
+ * file    = magic "CYFK", version (1 byte), varint header length, header, record*
+ * header  = field*
+ * field   = varint tag, varint length, bytes
+ * record  = varint body length, body
+ * body    = varint key length, key (UTF-8), sealed values
+ * values  = varint value count, value*
+ * value   = varint char count, chars (UTF-16BE)
+ * </pre>
+ * The values of a record are sealed as one block by the {@link CipherEngine}
+ * named in the header, with the key as associated data.
+ * <p>
+ * Values are stored as raw chars because the cyfered text can hold any
+ * 16-bit value, including lone surrogates that UTF-8 would not survive.
+ * Every record is prefixed with its length so it can be skipped without
+ * looking at its contents. Header fields with a tag the reader does not know
+ * are skipped, so new fields can be added without breaking older readers.
+ */
+public class VaultFormat {
+    public static final int VERSION = 2;
+    private static final byte[] MAGIC = {'C', 'Y', 'F', 'K'};
+
+    public static boolean isVault(ByteBuffer buf) {
+        if (buf.remaining() < MAGIC.length + 1) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(buf.position() + i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the vault into the given map straight from the file, one record
+     * at a time. Each record is read into the buffer its entry keeps, so the
+     * file passes through the heap once and its values are only opened when
+     * they are first used.
+     *
+     * @param engines picks the engine the records were sealed with from the header
+     * @return the header, or null when the file is not in the binary format
+     */
+    public static Header read(InputStream in, Map<String, Metadata> data,
+            Function<Header, CipherEngine> engines) throws IOException {
+        Header header = readHeader(in);
+        if (header == null) return null;
+        CipherEngine engine = engines.apply(header);
+        int first;
+        while ((first = in.read()) != -1) {
+            int length = readVarint(in, first);
+            if (length < 0) throw new IOException("Corrupt vault record");
+            ByteBuffer record = ByteBuffer.allocate(varintSize(length) + length);
+            writeVarint(record, length);
+            if (in.readNBytes(record.array(), record.position(), length) < length) {
+                throw new IOException("Vault file is truncated");
+            }
+            try {
+                String key = readKey(record);
+                data.put(key, new Metadata(key, record.clear(), engine));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt vault record", e);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Reads the magic, version and header block.
+     *
+     * @return the header, or null when the stream is not in the binary format
+     */
+    static Header readHeader(InputStream in) throws IOException {
+        ByteBuffer magic = ByteBuffer.wrap(in.readNBytes(MAGIC.length + 1));
+        if (!isVault(magic)) return null;
+        Header header = new Header(magic.get(MAGIC.length) & 0xFF);
+        if (header.version != VERSION) throw new IOException("Unsupported vault version " + header.version);
+        int length = readVarint(in, in.read());
+        if (length < 0) throw new IOException("Corrupt vault header");
+        ByteBuffer block = ByteBuffer.allocate(varintSize(length) + length);
+        writeVarint(block, length);
+        if (in.readNBytes(block.array(), block.position(), length) < length) {
+            throw new IOException("Vault file is truncated");
+        }
+        try {
+            header.read(block.clear());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt vault header", e);
+        }
+        // Every binary vault is sealed under a derived key, and carries what shows the password is right
+        if (header.salt == null || header.iterations <= 0 || header.verifier == null) {
+            throw new IOException("Corrupt vault header");
+        }
+        header.size = MAGIC.length + 1 + block.limit();
+        return header;
+    }
+
+    /**
+     * Reads the key and opens the values of a framed record.
+     */
+    static Metadata decode(ByteBuffer record, CipherEngine engine) throws IOException {
+        ByteBuffer buf = record.duplicate();
+        try {
+            readVarint(buf); // body length
+            String key = readKey(buf);
+            return new Metadata(key, open(record, engine));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt record", e);
+        }
+    }
+
+    /**
+     * Opens the values of a framed record.
+     */
+    static Credentials open(ByteBuffer record, CipherEngine engine) throws IOException {
+        ByteBuffer buf = record.duplicate();
+        ByteBuffer plain = null;
+        try {
+            int end = readVarint(buf);
+            end += buf.position();
+            byte[] key = new byte[readVarint(buf)];
+            buf.get(key);
+            buf.limit(end);
+            int length = buf.remaining() - engine.overhead();
+            if (length < 0) throw new IOException("Corrupt record");
+            plain = ByteBuffer.allocate(length);
+            engine.open(buf, plain, key);
+            plain.flip();
+            Credentials values = readValues(plain);
+            if (plain.hasRemaining()) throw new IOException("Corrupt record");
+            return values;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record could not be decrypted", e);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt record", e);
+        } finally {
+            if (plain != null) Arrays.fill(plain.array(), (byte) 0); // don't leave the plain text behind
+        }
+    }
+
+    private static String readKey(ByteBuffer buf) {
+        byte[] key = new byte[readVarint(buf)];
+        buf.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static Credentials readValues(ByteBuffer buf) {
+        // size the packed buffer and pick its width first, then copy the chars straight in
+        int start = buf.position();
+        int count = readVarint(buf);
+        int total = 0;
+        boolean wide = false;
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(buf);
+            int end = buf.position() + length * 2;
+            if (end > buf.limit()) throw new BufferUnderflowException();
+            for (int at = buf.position(); at < end && !wide; at += 2) {
+                wide = buf.get(at) != 0; // high byte of a UTF-16BE char
+            }
+            total += length;
+            buf.position(end);
+        }
+        buf.position(start);
+        readVarint(buf);
+        // wide buffers use the same big-endian layout, so their chars are copied as they are
+        ByteBuffer packed = Credentials.allocate(wide ? total * 2 : total);
+        int[] bounds = new int[count * 2];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(buf);
+            bounds[i * 2] = position;
+            if (wide) {
+                packed.put(position * 2, buf, buf.position(), length * 2);
+                buf.position(buf.position() + length * 2);
+            } else {
+                for (int j = 0; j < length; j++) {
+                    packed.put(position + j, buf.get(buf.position() + j * 2 + 1));
+                }
+                buf.position(buf.position() + length * 2);
+            }
+            position += length;
+            bounds[i * 2 + 1] = position;
+        }
+        return Credentials.wrap(packed, wide, bounds, count);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public static int writeHeader(OutputStream out, Header header) throws IOException {
+        byte[] block = header.encode().array();
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(block);
+        return MAGIC.length + 1 + block.length;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public static int writeRecord(OutputStream out, ByteBuffer record) throws IOException {
+        out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+        return record.remaining();
+    }
+
+    /**
+     * Encodes the record of an entry with its values sealed by the engine.
+     */
+    public static ByteBuffer encode(Metadata meta, CipherEngine engine) throws IOException {
+        byte[] key = meta.getKey().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = values(meta.load());
+        try {
+            ByteBuffer buf = frame(key, plain.remaining() + engine.overhead());
+            engine.seal(plain, buf, key);
+            return buf.flip();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record could not be encrypted", e);
+        } finally {
+            Arrays.fill(plain.array(), (byte) 0); // don't leave the plain text behind
+        }
+    }
+
+    /**
+     * Frames values that are already sealed, as the legacy text format stored them.
+     */
+    static ByteBuffer record(String key, ByteBuffer sealed) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        return frame(bytes, sealed.remaining()).put(sealed).flip();
+    }
+
+    private static ByteBuffer frame(byte[] key, int sealed) {
+        // work out the body length up front so the record can be framed
+        int length = varintSize(key.length) + key.length + sealed;
+        // build the whole record in one buffer so it goes out in a single write
+        ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+        writeVarint(buf, length);
+        writeVarint(buf, key.length);
+        return buf.put(key);
+    }
+
+    static ByteBuffer values(Credentials values) {
+        int length = varintSize(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            length += varintSize(values.length(i)) + values.length(i) * 2;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        writeVarint(buf, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            writeVarint(buf, values.length(i));
+            for (int j = values.start(i); j < values.start(i) + values.length(i); j++) {
+                buf.putChar(values.charAt(j));
+            }
+        }
+        return buf.flip();
+    }
+
+    public static int readVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value; // high bit clear, last group
+        }
+    }
+
+    static int readVarint(InputStream in, int b) throws IOException {
+        // b is the first byte, already read by the caller
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (b == -1) throw new EOFException("Vault file is truncated");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            b = in.read();
+        }
+    }
+
+    public static void writeVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Values kept in the header block of a vault file.
+     */
+    public static class Header {
+        private static final int GENERATION = 1;
+        private static final int CIPHER = 2;
+        private static final int SALT = 3;
+        private static final int ITERATIONS = 4;
+        private static final int VERIFIER = 5;
+
+        private final int version; // format version the file was read from, 0 for legacy files
+        private int size; // bytes it took in the file, magic included
+        private int generation; // first journal generation not yet folded into the records
+        private int cipher = CipherEngine.XOR; // engine the records are sealed with, XOR for legacy files
+        private byte[] salt; // salt the key was derived with, null for legacy files
+        private int iterations; // rounds the key was derived with
+        private byte[] verifier; // MAC of a fixed label under the key, null for legacy files
+
+        public Header(int version) {
+            this.version = version;
+        }
+
+        void read(ByteBuffer buf) {
+            int end = readVarint(buf);
+            end += buf.position();
+            while (buf.position() < end) {
+                int tag = readVarint(buf);
+                int length = readVarint(buf);
+                int next = buf.position() + length;
+                switch (tag) {
+                    case GENERATION -> generation = readVarint(buf);
+                    case CIPHER -> cipher = readVarint(buf);
+                    case SALT -> buf.get(salt = new byte[length]);
+                    case ITERATIONS -> iterations = readVarint(buf);
+                    case VERIFIER -> buf.get(verifier = new byte[length]);
+                    default -> { } // unknown field, skipped below
+                }
+                buf.position(next);
+            }
+        }
+
+        ByteBuffer encode() {
+            int length = 2 + varintSize(generation) + 2 + varintSize(cipher);
+            if (salt != null) {
+                length += 1 + varintSize(salt.length) + salt.length;
+                length += 2 + varintSize(iterations);
+            }
+            if (verifier != null) length += 1 + varintSize(verifier.length) + verifier.length;
+            ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+            writeVarint(buf, length);
+            writeVarint(buf, GENERATION);
+            writeVarint(buf, varintSize(generation));
+            writeVarint(buf, generation);
+            writeVarint(buf, CIPHER);
+            writeVarint(buf, varintSize(cipher));
+            writeVarint(buf, cipher);
+            if (salt != null) {
+                writeVarint(buf, SALT);
+                writeVarint(buf, salt.length);
+                buf.put(salt);
+                writeVarint(buf, ITERATIONS);
+                writeVarint(buf, varintSize(iterations));
+                writeVarint(buf, iterations);
+            }
+            if (verifier != null) {
+                writeVarint(buf, VERIFIER);
+                writeVarint(buf, verifier.length);
+                buf.put(verifier);
+            }
+            return buf.flip();
+        }
+
+        /**
+         * @return whether records under both headers are sealed the same way
+         */
+        boolean sameCipher(Header other) {
+            return cipher == other.cipher && Arrays.equals(salt, other.salt) && iterations == other.iterations;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        int size() {
+            return size;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(int generation) {
+            this.generation = generation;
+        }
+
+        public int getCipher() {
+            return cipher;
+        }
+
+        public void setCipher(int cipher) {
+            this.cipher = cipher;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public void setSalt(byte[] salt) {
+            this.salt = salt;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public void setIterations(int iterations) {
+            this.iterations = iterations;
+        }
+
+        public byte[] getVerifier() {
+            return verifier;
+        }
+
+        public void setVerifier(byte[] verifier) {
+            this.verifier = verifier;
+        }
+    }
+}
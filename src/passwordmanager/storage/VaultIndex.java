@@ -0,0 +1,114 @@
+package passwordmanager.storage;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Function;
+import passwordmanager.crypto.CipherEngine;
+
+/**
+ * Key to record index over a {@link VaultFormat} file.
+ * <p>
+ * Only the keys are read when the vault is opened. Every entry remembers
+ * where its record lives and reads it through this index the first time its
+ * values are needed. Records are read with positional channel reads rather
+ * than a mapping, because a mapped file cannot be replaced on Windows and
+ * the vault is swapped out whenever the journal is compacted.
+ */
+public class VaultIndex {
+    private final File file;
+    private FileChannel channel;
+
+    public VaultIndex(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Reads every key of the vault into the map as an unloaded entry.
+     *
+     * @param engines picks the engine the records were sealed with from the header
+     * @return the vault header, or null when the file is not in the binary format
+     */
+    public VaultFormat.Header scan(Map<String, Metadata> data,
+            Function<VaultFormat.Header, CipherEngine> engines) throws IOException {
+        // stream through the file so only the keys end up on the heap
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16);
+        VaultFormat.Header header = VaultFormat.readHeader(in);
+        if (header == null) return null;
+        CipherEngine engine = engines.apply(header);
+        long position = header.size();
+
+        // records: keep the key and where the body starts, skip the rest
+        int first;
+        while ((first = in.read()) != -1) {
+            int length = VaultFormat.readVarint(in, first);
+            position += VaultFormat.varintSize(length);
+            int keyLength = readVarint(in);
+            String key = new String(in.readNBytes(keyLength), StandardCharsets.UTF_8);
+            long skip = length - VaultFormat.varintSize(keyLength) - keyLength;
+            in.skipNBytes(skip);
+            data.put(key, new Metadata(key, this, engine, position, length));
+            position += length;
+        }
+        return header;
+    }
+
+    /**
+     * Returns the framed record of an unopened entry exactly as it is stored.
+     */
+    synchronized ByteBuffer record(Metadata meta) throws IOException {
+        ByteBuffer body = body(meta);
+        ByteBuffer buf = ByteBuffer.allocate(VaultFormat.varintSize(body.limit()) + body.limit());
+        VaultFormat.writeVarint(buf, body.limit());
+        return buf.put(body).flip();
+    }
+
+    private ByteBuffer body(Metadata meta) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(meta.length);
+        long position = meta.offset;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) throw new EOFException("Vault record " + meta.getKey() + " is cut short");
+            position += n;
+        }
+        return buf.flip();
+    }
+
+    /**
+     * Moves a freshly written vault over the indexed one and points the given
+     * entries at their new record offsets. Offsets of entries that were
+     * already loaded are ignored.
+     */
+    synchronized void replace(File temp, Metadata[] entries, long[] offsets) throws IOException {
+        channel.close(); // Windows will not replace a file that is still open
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Storage.syncDirectory(file);
+        } finally {
+            // reopen whichever file is now in place
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        for (int i = 0; i < entries.length; i++) {
+            entries[i].relocate(offsets[i]);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        return VaultFormat.readVarint(in, in.read());
+    }
+}
@@ -1,35 +1,37 @@
 package passwordmanager.tasks;
 
-import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class AsyncTask {
-    private static ArrayList<String> tasks = new ArrayList<>();
+    private static Set<String> tasks = ConcurrentHashMap.newKeySet();
     private final String id;
     
     public AsyncTask(String id, Runnable task){
         this.id = id;
-        // check if task is still busy
-        if (!finnished()) return;
+        // add itself to the list, unless the task is still busy
+        if (!tasks.add(id)) return;
         // execute async task
         new Thread(() -> {
-            // execute the runnable
-            task.run();
-            // after completion remove itself from the list
-            remove();
+            try {
+                // execute the runnable
+                task.run();
+            } finally {
+                // after completion remove itself from the list
+                remove();
+            }
         }).start();
-        // add itself to the list
-        tasks.add(id);
     }
     public AsyncTask(String id){
         this.id = id;
     }
     
-    private synchronized void remove(){
+    private void remove(){
         tasks.remove(id);
     }
     
-    public synchronized boolean finnished(){
+    public boolean finnished(){
         return !tasks.contains(id);
     }
 }
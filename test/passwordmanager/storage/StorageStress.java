@@ -0,0 +1,137 @@
+package passwordmanager.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent put, remove and lookup against one {@link Storage}, with saves
+ * running underneath, then checks that the vault holds exactly what the
+ * threads left in it, both before and after it is closed and opened again.
+ * <p>
+ * Runs on its own, from the project directory:
+ * <pre>
+ * java -cp build/classes:build/test/classes passwordmanager.storage.StorageStress [threads] [seconds]
+ * </pre>
+ * Exits with 1 if a thread failed or the contents don't match.
+ */
+public class StorageStress {
+    private static final int KEYS = 64; // few enough that threads keep meeting on the same entries
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        String user = "stress-" + System.nanoTime();
+        String password = "stress";
+
+        Storage storage = new Storage(user, password);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong ops = new AtomicLong();
+        // Each thread only removes values it put itself, so it knows which are still there
+        List<Map<String, List<String>>> kept = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            Map<String, List<String>> mine = new HashMap<>();
+            kept.add(mine);
+            int id = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(id);
+                try {
+                    for (int i = 0; running.get(); i++) {
+                        String key = "site" + random.nextInt(KEYS) + ".com";
+                        List<String> values = mine.computeIfAbsent(key, k -> new ArrayList<>());
+                        int op = random.nextInt(10);
+                        if (op < 4) {
+                            String value = "t" + id + "-" + i;
+                            storage.put(new Metadata(key, value));
+                            values.add(value);
+                        } else if (op < 7 && !values.isEmpty()) {
+                            storage.remove(key, values.remove(random.nextInt(values.size())));
+                        } else {
+                            // A snapshot is never torn: every value it holds reads back whole
+                            Metadata meta = storage.find(key);
+                            if (meta != null) {
+                                for (String value : meta.getData()) {
+                                    if (value.indexOf('-') < 0) throw new AssertionError("Torn value " + value);
+                                }
+                            }
+                        }
+                        ops.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-" + t);
+            worker.start();
+        }
+        // Compactions run alongside the writers, as they do once the journal grows
+        Thread saver = new Thread(() -> {
+            while (running.get()) {
+                if (!storage.save()) failure.compareAndSet(null, new AssertionError("Save failed"));
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "stress-save");
+        saver.start();
+
+        Thread.sleep(seconds * 1000);
+        running.set(false);
+        done.await();
+        saver.join();
+        System.out.printf("%d threads, %d ops in %d s (%.0f ops/s)%n",
+                threads, ops.get(), seconds, ops.get() / (double) seconds);
+
+        Map<String, List<String>> expected = new HashMap<>();
+        for (Map<String, List<String>> mine : kept) {
+            mine.forEach((key, values) -> expected.computeIfAbsent(key, k -> new ArrayList<>()).addAll(values));
+        }
+        boolean ok = failure.get() == null;
+        if (!ok) failure.get().printStackTrace();
+        ok &= check("live", storage, expected);
+        storage.close();
+
+        Storage reopened = new Storage(user, password);
+        ok &= check("reopened", reopened, expected);
+        reopened.close();
+
+        File dir = new File("data");
+        for (File f : dir.listFiles((d, name) -> name.startsWith(user))) {
+            f.delete();
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(String stage, Storage storage, Map<String, List<String>> expected) {
+        boolean ok = true;
+        for (int k = 0; k < KEYS; k++) {
+            String key = "site" + k + ".com";
+            String[] want = expected.getOrDefault(key, List.of()).toArray(String[]::new);
+            Metadata meta = storage.fetch(key);
+            String[] have = meta == null ? new String[0] : meta.getData();
+            Arrays.sort(want);
+            Arrays.sort(have);
+            if (!Arrays.equals(want, have)) {
+                System.out.println(stage + ": " + key + " holds " + Arrays.toString(have)
+                        + ", expected " + Arrays.toString(want));
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}